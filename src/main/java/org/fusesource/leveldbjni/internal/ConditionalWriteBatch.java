@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.fusesource.leveldbjni.internal;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A batch of puts and deletes which is only written if the values of a set of
+ * keys are as expected when it is written.  Between the check and the write
+ * the keys are locked against the merges and conditional writes of the same
+ * database, but not against plain puts, deletes and write batches.
+ *
+ * @see JniDB#write(ConditionalWriteBatch, org.iq80.leveldb.WriteOptions)
+ */
+public class ConditionalWriteBatch {
+
+  // null values stand for a missing key and a delete respectively
+  private final Map<ByteBuffer, byte[]> expected = new LinkedHashMap<ByteBuffer, byte[]>();
+  private final Map<ByteBuffer, byte[]> updates = new LinkedHashMap<ByteBuffer, byte[]>();
+
+  ConditionalWriteBatch() {
+  }
+
+  /**
+   * Only writes the batch if the key has the given value, or no value if value is null.
+   */
+  public ConditionalWriteBatch expect(byte[] key, byte[] value) {
+    NativeDB.checkArgNotNull(key, "key");
+    expected.put(ByteBuffer.wrap(key.clone()), value == null ? null : value.clone());
+    return this;
+  }
+
+  /**
+   * Only writes the batch if the key has no value.
+   */
+  public ConditionalWriteBatch expectAbsent(byte[] key) {
+    return expect(key, null);
+  }
+
+  public ConditionalWriteBatch put(byte[] key, byte[] value) {
+    NativeDB.checkArgNotNull(key, "key");
+    NativeDB.checkArgNotNull(value, "value");
+    updates.put(ByteBuffer.wrap(key.clone()), value.clone());
+    return this;
+  }
+
+  public ConditionalWriteBatch delete(byte[] key) {
+    NativeDB.checkArgNotNull(key, "key");
+    updates.put(ByteBuffer.wrap(key.clone()), null);
+    return this;
+  }
+
+  public ConditionalWriteBatch clear() {
+    expected.clear();
+    updates.clear();
+    return this;
+  }
+
+  Map<ByteBuffer, byte[]> expected() {
+    return expected;
+  }
+
+  Map<ByteBuffer, byte[]> updates() {
+    return updates;
+  }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.iq80.leveldb.DBException;
+import org.iq80.leveldb.WriteOptions;
+
+/**
+ * Coalesces the writes of concurrent threads into groups, each written to
+ * leveldb with a single synced write.  The future returned for a write
+ * completes once the group holding it is durable, so every caller keeps the
+ * durability of a synced write while the cost of the sync is shared by the
+ * whole group.
+ *
+ * <p>Writes are queued and picked up by one committer thread.  A group is
+ * started by the first queued write and grows until it holds maxRecords records
+ * or maxBytes bytes, until no write has been queued for the linger time after
+ * the group was started, whichever comes first.  A single write larger than the
+ * bounds makes a group of its own.  Writes are applied in the order they were
+ * queued.</p>
+ */
+public class GroupCommitWriter {
+
+  private static final WriteOptions SYNC = new WriteOptions().sync(true);
+
+  private final JniDB db;
+  private final long lingerNanos;
+  private final int maxRecords;
+  private final long maxBytes;
+  private final Queue<Request> queue = new ConcurrentLinkedQueue<Request>();
+  private final JniHeapWriteBatch batch;
+  private final List<Request> group = new ArrayList<Request>();
+  private final Thread committer;
+  private final AtomicLong groups = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+  private volatile boolean waiting;
+  private volatile boolean closed;
+  private Request carried;
+
+  GroupCommitWriter(JniDB db, long linger, TimeUnit unit, int maxRecords, long maxBytes) {
+    if (linger < 0) {
+      throw new IllegalArgumentException("linger cannot be negative");
+    }
+    if (maxRecords < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("maxRecords and maxBytes must be positive");
+    }
+    this.db = db;
+    this.lingerNanos = unit.toNanos(linger);
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+    this.batch = db.createHeapWriteBatch();
+    this.committer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          commitGroups();
+        } finally {
+          // the group is only left over when the committer itself failed, in
+          // which case nobody is left to complete its writes
+          failGroup(new DBException("The group commit writer stopped"));
+          failQueued();
+        }
+      }
+    }, "leveldbjni group commit");
+    this.committer.setDaemon(true);
+    this.committer.start();
+  }
+
+  public CompletableFuture<Void> put(byte[] key, byte[] value) {
+    NativeDB.checkArgNotNull(key, "key");
+    NativeDB.checkArgNotNull(value, "value");
+    return submit(new Request(key, value, null, null, 1, key.length + value.length));
+  }
+
+  public CompletableFuture<Void> delete(byte[] key) {
+    NativeDB.checkArgNotNull(key, "key");
+    return submit(new Request(key, null, null, null, 1, key.length));
+  }
+
+  /**
+   * Queues the records of the batch, which are copied so that the batch can
+   * be reused as soon as this method returns.  The records of the batch are
+   * always committed in the same group.
+   */
+  public CompletableFuture<Void> write(JniHeapWriteBatch updates) {
+    NativeDB.checkArgNotNull(updates, "updates");
+    if (!updates.spilled()) {
+      byte[] encoded = updates.records();
+      return submit(new Request(null, null, encoded, null, updates.count(), encoded.length));
+    }
+    // the records are only held by the native batch, so copy that instead
+    JniWriteBatch copy = new JniWriteBatch(new NativeWriteBatch());
+    try {
+      copy.append(updates);
+      return submit(new Request(null, null, null, copy, updates.count(),
+          updates.approximateSize()));
+    } catch (RuntimeException e) {
+      copy.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the number of groups written to leveldb so far
+   */
+  public long groups() {
+    return groups.get();
+  }
+
+  /**
+   * @return the number of records written to leveldb so far
+   */
+  public long records() {
+    return records.get();
+  }
+
+  /**
+   * Commits the writes queued so far, then stops the committer thread.  Writes
+   * queued after the writer is closed fail.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(committer);
+    boolean interrupted = false;
+    while (committer.isAlive()) {
+      try {
+        committer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    failQueued();
+    batch.close();
+    db.closed(this);
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private CompletableFuture<Void> submit(Request request) {
+    if (closed || !committer.isAlive()) {
+      throw new DBException("Closed");
+    }
+    queue.offer(request);
+    if (waiting) {
+      LockSupport.unpark(committer);
+    }
+    // the committer may have stopped before it could see this request
+    if (!committer.isAlive()) {
+      failQueued();
+    }
+    return request.future;
+  }
+
+  private void failQueued() {
+    Request request;
+    while ((request = queue.poll()) != null) {
+      request.release();
+      request.future.completeExceptionally(new DBException("Closed"));
+    }
+  }
+
+  private void failGroup(Throwable failure) {
+    if (carried != null) {
+      group.add(carried);
+      carried = null;
+    }
+    for (Request request : group) {
+      request.release();
+      request.future.completeExceptionally(failure);
+    }
+    group.clear();
+  }
+
+  private void commitGroups() {
+    Request first;
+    while ((first = next(Long.MAX_VALUE)) != null) {
+      long deadline = System.nanoTime() + lingerNanos;
+      int groupRecords = first.records;
+      long groupBytes = first.bytes;
+      add(first);
+      while (groupRecords < maxRecords && groupBytes < maxBytes) {
+        long remaining = deadline - System.nanoTime();
+        Request request = next(remaining);
+        if (request == null) {
+          break;
+        }
+        if (groupRecords + request.records > maxRecords || groupBytes + request.bytes > maxBytes) {
+          carried = request;
+          break;
+        }
+        groupRecords += request.records;
+        groupBytes += request.bytes;
+        add(request);
+      }
+      commit();
+    }
+  }
+
+  /**
+   * @return the next request, waiting up to timeout nanoseconds for it, or null
+   *     when there is none or the writer was closed and every request was taken
+   */
+  private Request next(long timeout) {
+    Request rc = carried;
+    if (rc != null) {
+      carried = null;
+      return rc;
+    }
+    boolean timed = timeout != Long.MAX_VALUE;
+    long deadline = timed ? System.nanoTime() + timeout : 0;
+    while ((rc = queue.poll()) == null) {
+      long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+      if (closed || remaining <= 0) {
+        return null;
+      }
+      // producers only unpark the committer when it says it is waiting, so
+      // check the queue again once that has been said
+      waiting = true;
+      if (queue.isEmpty() && !closed) {
+        if (timed) {
+          LockSupport.parkNanos(this, remaining);
+        } else {
+          LockSupport.park(this);
+        }
+      }
+      waiting = false;
+    }
+    return rc;
+  }
+
+  /**
+   * Adds the request to the current group.  A request which cannot be added to
+   * the batch fails on its own, the rest of the group is still committed.
+   */
+  private void add(Request request) {
+    try {
+      apply(request);
+      group.add(request);
+    } catch (RuntimeException e) {
+      request.release();
+      request.future.completeExceptionally(e);
+      // the request may have been added in part, so rebuild the batch
+      batch.clear();
+      for (Request added : group) {
+        apply(added);
+      }
+    }
+  }
+
+  private void apply(Request request) {
+    if (request.key != null) {
+      if (request.value == null) {
+        batch.delete(request.key);
+      } else {
+        batch.put(request.key, request.value);
+      }
+    } else if (request.encoded != null) {
+      batch.append(request.encoded, 0, request.encoded.length, request.records);
+    } else {
+      batch.append(request.copy);
+    }
+  }
+
+  private void commit() {
+    if (group.isEmpty()) {
+      batch.clear();
+      return;
+    }
+    int groupRecords = 0;
+    for (Request request : group) {
+      groupRecords += request.records;
+    }
+    Throwable failure = null;
+    try {
+      db.write(batch, SYNC);
+      groups.incrementAndGet();
+      records.addAndGet(groupRecords);
+    } catch (Throwable e) {
+      failure = e;
+    }
+    for (Request request : group) {
+      request.release();
+      if (failure == null) {
+        request.future.complete(null);
+      } else {
+        request.future.completeExceptionally(failure);
+      }
+    }
+    group.clear();
+    batch.clear();
+  }
+
+  private static final class Request {
+    final byte[] key;
+    final byte[] value;
+    final byte[] encoded;
+    final JniWriteBatch copy;
+    final int records;
+    final long bytes;
+    final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+    Request(byte[] key, byte[] value, byte[] encoded, JniWriteBatch copy, int records,
+            long bytes) {
+      this.key = key;
+      this.value = value;
+      this.encoded = encoded;
+      this.copy = copy;
+      this.records = records;
+      this.bytes = bytes;
+    }
+
+    void release() {
+      if (copy != null) {
+        copy.close();
+      }
+    }
+  }
+}
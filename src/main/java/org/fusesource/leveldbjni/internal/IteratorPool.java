@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps closed iterators around so that short scans can skip building a new
+ * native iterator.  A leveldb iterator reads the state of the database at the
+ * time it was created, so a pooled iterator is only handed out again while it
+ * is younger than the pool's maximum staleness; older ones are refreshed.
+ *
+ * <p>Iterators are borrowed with {@link #iterator()} and handed back by closing
+ * them.  Their bounds, filter and prefetch settings are reset on the way back.</p>
+ */
+public class IteratorPool {
+
+  private final JniDB owner;
+  private final NativeDB db;
+  private final NativeReadOptions options;
+  private final int maxIdle;
+  private final long maxStaleness;
+  private final ArrayDeque<NativeIterator> idle = new ArrayDeque<NativeIterator>();
+  private boolean closed;
+
+  IteratorPool(JniDB owner, NativeDB db, NativeReadOptions options, int maxIdle,
+               long maxStalenessMillis) {
+    if (maxIdle < 0 || maxStalenessMillis < 0) {
+      throw new IllegalArgumentException("maxIdle and maxStalenessMillis cannot be negative");
+    }
+    this.owner = owner;
+    this.db = db;
+    this.options = options;
+    this.maxIdle = maxIdle;
+    this.maxStaleness = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+  }
+
+  /**
+   * Borrows an iterator.  A reused iterator is left where its previous
+   * borrower left it, so position it with one of the seek methods first.
+   *
+   * @return an iterator which sees every write made more than the maximum
+   *     staleness ago
+   */
+  public JniDBIterator iterator() {
+    NativeIterator rc;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("The pool is closed");
+      }
+      rc = idle.pollFirst();
+    }
+    if (rc == null) {
+      rc = db.iterator(options);
+    } else if (System.nanoTime() - rc.created() > maxStaleness) {
+      try {
+        rc.refresh();
+      } catch (NativeDB.DBException e) {
+        rc.delete();
+        throw new RuntimeException(e);
+      }
+    }
+    return new JniDBIterator(rc, this);
+  }
+
+  /**
+   * @return the number of iterators waiting to be borrowed
+   */
+  public synchronized int idle() {
+    return idle.size();
+  }
+
+  void release(NativeIterator iterator) {
+    iterator.bounds(null, null);
+    iterator.filter(null);
+    synchronized (this) {
+      if (!closed && idle.size() < maxIdle) {
+        idle.addFirst(iterator);
+        return;
+      }
+    }
+    iterator.delete();
+  }
+
+  /**
+   * Deletes the idle iterators.  Iterators which are still borrowed are
+   * deleted when they are closed.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    NativeIterator iterator;
+    while ((iterator = poll()) != null) {
+      iterator.delete();
+    }
+    owner.closed(this);
+  }
+
+  private synchronized NativeIterator poll() {
+    return idle.pollFirst();
+  }
+}
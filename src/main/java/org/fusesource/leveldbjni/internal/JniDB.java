@@ -32,6 +32,18 @@
 
 package org.fusesource.leveldbjni.internal;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBException;
 import org.iq80.leveldb.DBIterator;
@@ -46,11 +58,25 @@ import org.iq80.leveldb.WriteOptions;
  */
 public class JniDB implements DB {
 
+  /**
+   * Returned by {@link #get(ByteBuffer, ByteBuffer)} when the key does not exist.
+   */
+  public static final int NOT_FOUND = NativeDB.NOT_FOUND;
+
+  private static final int BULK_SCAN_ENTRIES = 1024;
+  private static final long BULK_SCAN_BYTES = 4 * 1024 * 1024;
+  private static final int KEY_LOCK_STRIPES = 256;
+
   private NativeDB db;
   private NativeCache cache;
   private NativeFilter filter;
   private NativeComparator comparator;
   private NativeLogger logger;
+  private final KeyLocks keyLocks = new KeyLocks(KEY_LOCK_STRIPES);
+  private final List<IteratorPool> pools = new ArrayList<IteratorPool>();
+  private final List<GroupCommitWriter> writers = new ArrayList<GroupCommitWriter>();
+  private final List<WriteBehindBuffer> buffers = new ArrayList<WriteBehindBuffer>();
+  private final ScanStatistics bulkScanStatistics = new ScanStatistics();
 
   public JniDB(NativeDB db, NativeCache cache, NativeFilter filter, NativeComparator comparator,
                NativeLogger logger) {
@@ -61,8 +87,39 @@ public class JniDB implements DB {
     this.logger = logger;
   }
 
+  /**
+   * Closes the write-behind buffers, group commit writers and iterator pools
+   * of the database, then the database itself.  If one of them fails to close,
+   * the others are closed anyway and the failure is rethrown with the database
+   * left open, so that closing it again retries what failed.
+   */
   public void close() {
     if (db != null) {
+      RuntimeException failure = null;
+      for (WriteBehindBuffer buffer : snapshot(buffers)) {
+        try {
+          buffer.close();
+        } catch (RuntimeException e) {
+          failure = suppress(failure, e);
+        }
+      }
+      for (GroupCommitWriter writer : snapshot(writers)) {
+        try {
+          writer.close();
+        } catch (RuntimeException e) {
+          failure = suppress(failure, e);
+        }
+      }
+      for (IteratorPool pool : snapshot(pools)) {
+        try {
+          pool.close();
+        } catch (RuntimeException e) {
+          failure = suppress(failure, e);
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
       db.delete();
       db = null;
       if (cache != null) {
@@ -85,6 +142,38 @@ public class JniDB implements DB {
   }
 
 
+  private static <T> List<T> snapshot(List<T> resources) {
+    synchronized (resources) {
+      return new ArrayList<T>(resources);
+    }
+  }
+
+  private static RuntimeException suppress(RuntimeException failure, RuntimeException e) {
+    if (failure == null) {
+      return e;
+    }
+    failure.addSuppressed(e);
+    return failure;
+  }
+
+  void closed(WriteBehindBuffer buffer) {
+    synchronized (buffers) {
+      buffers.remove(buffer);
+    }
+  }
+
+  void closed(GroupCommitWriter writer) {
+    synchronized (writers) {
+      writers.remove(writer);
+    }
+  }
+
+  void closed(IteratorPool pool) {
+    synchronized (pools) {
+      pools.remove(pool);
+    }
+  }
+
   public byte[] get(byte[] key) throws DBException {
     if (db == null) {
       throw new DBException("Closed");
@@ -106,6 +195,50 @@ public class JniDB implements DB {
     }
   }
 
+  public int get(ByteBuffer key, ByteBuffer value) throws DBException {
+    return get(key, value, new ReadOptions());
+  }
+
+  /**
+   * Looks up the remaining bytes of {@code key} and copies the value into {@code value}
+   * without going through a {@code byte[]}.  Direct buffers are handed to leveldb in place.
+   *
+   * @return the full length of the stored value, which may exceed the number of bytes
+   *     copied, or {@link #NOT_FOUND}
+   * @see NativeDB#get(NativeReadOptions, ByteBuffer, ByteBuffer)
+   */
+  public int get(ByteBuffer key, ByteBuffer value, ReadOptions options) throws DBException {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    try {
+      return db.get(convert(options), key, value);
+    } catch (NativeDB.DBException e) {
+      throw new DBException(e.getMessage(), e);
+    }
+  }
+
+  public List<byte[]> multiGet(List<byte[]> keys) throws DBException {
+    return multiGet(keys, new ReadOptions());
+  }
+
+  /**
+   * Looks up all the keys against one consistent view of the database.
+   *
+   * @return the values in the order of the keys, null for keys which do not exist
+   * @see NativeDB#multiGet(NativeReadOptions, List)
+   */
+  public List<byte[]> multiGet(List<byte[]> keys, ReadOptions options) throws DBException {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    try {
+      return db.multiGet(convert(options), keys);
+    } catch (NativeDB.DBException e) {
+      throw new DBException(e.getMessage(), e);
+    }
+  }
+
   public DBIterator iterator() {
     return iterator(new ReadOptions());
   }
@@ -117,6 +250,323 @@ public class JniDB implements DB {
     return new JniDBIterator(db.iterator(convert(options)));
   }
 
+  /**
+   * Opens an iterator which copies entries out of leveldb in runs of up to
+   * maxEntries entries or maxBytes of keys and values while scanning forward.
+   *
+   * @see JniDBIterator#prefetch(int, long)
+   */
+  public JniDBIterator iterator(ReadOptions options, int maxEntries, long maxBytes) {
+    return ((JniDBIterator) iterator(options)).prefetch(maxEntries, maxBytes);
+  }
+
+  /**
+   * Opens an iterator restricted to the keys at or past lowerBound and before
+   * upperBound.  Either bound may be null.
+   *
+   * @see NativeIterator#bounds(byte[], byte[])
+   */
+  public JniDBIterator iterator(ReadOptions options, byte[] lowerBound, byte[] upperBound) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    NativeIterator rc = db.iterator(convert(options));
+    return new JniDBIterator(rc.bounds(lowerBound, upperBound));
+  }
+
+  /**
+   * Opens an iterator which only stops at the entries matching the filter.
+   *
+   * @see NativeIterator#filter(ScanFilter)
+   */
+  public JniDBIterator iterator(ReadOptions options, ScanFilter filter) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    return new JniDBIterator(db.iterator(convert(options)).filter(filter));
+  }
+
+  public JniDBIterator prefixIterator(byte[] prefix) {
+    return prefixIterator(prefix, new ReadOptions());
+  }
+
+  /**
+   * Opens an iterator restricted to the keys starting with the given prefix.
+   *
+   * @see NativeIterator#prefix(byte[])
+   */
+  public JniDBIterator prefixIterator(byte[] prefix, ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    NativeIterator rc = db.iterator(convert(options));
+    return new JniDBIterator(rc.prefix(prefix));
+  }
+
+  public JniKeyIterator keyIterator() {
+    return keyIterator(new ReadOptions());
+  }
+
+  /**
+   * Opens an iterator over the keys only, which never copies values out of leveldb.
+   */
+  public JniKeyIterator keyIterator(ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    return new JniKeyIterator(db.iterator(convert(options)));
+  }
+
+  public JniDBCursor cursor() {
+    return cursor(new ReadOptions());
+  }
+
+  /**
+   * Opens a cursor which copies keys and values into caller owned holders.
+   */
+  public JniDBCursor cursor(ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    return new JniDBCursor(db.iterator(convert(options)));
+  }
+
+  public ParallelScan parallelScan(byte[] start, byte[] limit) {
+    return parallelScan(start, limit, new ReadOptions());
+  }
+
+  /**
+   * Prepares a scan of the keys from start up to, but excluding, limit which
+   * runs over several partitions at once.  Either end may be null.
+   */
+  public ParallelScan parallelScan(byte[] start, byte[] limit, ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    return new ParallelScan(db, convert(options), start, limit);
+  }
+
+  public Stream<Map.Entry<byte[], byte[]>> stream(Range range) {
+    return stream(range, new ReadOptions());
+  }
+
+  /**
+   * Streams the entries of a range, or of the whole database when the range is
+   * null, from one pinned snapshot.  Values are only copied when asked for, and
+   * parallel streams split the range on approximate-size midpoints.  The stream
+   * must be closed to release its iterators and snapshot.
+   *
+   * <p>An entry only holds its value once {@code getValue()} was called, and
+   * reads it from the snapshot when called after the stream moved on, so call
+   * it before closing the stream: entries collected out of the stream throw
+   * {@link IllegalStateException} from {@code getValue()} once it is closed.</p>
+   */
+  public Stream<Map.Entry<byte[], byte[]>> stream(Range range, ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    return RangeSpliterator.stream(db, convert(options),
+        range == null ? null : range.start(), range == null ? null : range.limit());
+  }
+
+  /**
+   * @return the number of keys from start up to, but excluding, limit.
+   *     Either end may be null.
+   */
+  public long count(byte[] start, byte[] limit) throws DBException {
+    return count(start, limit, Long.MAX_VALUE, new ReadOptions());
+  }
+
+  /**
+   * Counts the keys of a range without copying any key or value out of leveldb.
+   *
+   * @param maxEntries the count stops once it reaches this number
+   */
+  public long count(byte[] start, byte[] limit, long maxEntries, ReadOptions options)
+      throws DBException {
+    return aggregate(start, limit, maxEntries, false, options)[0];
+  }
+
+  /**
+   * @return the sum of the key and value lengths from start up to, but
+   *     excluding, limit.  Either end may be null.
+   */
+  public long totalBytes(byte[] start, byte[] limit) throws DBException {
+    return totalBytes(start, limit, Long.MAX_VALUE, new ReadOptions());
+  }
+
+  /**
+   * Sums up the key and value lengths of a range without copying any key or
+   * value out of leveldb.
+   *
+   * @param maxEntries the sum stops after this number of entries
+   */
+  public long totalBytes(byte[] start, byte[] limit, long maxEntries, ReadOptions options)
+      throws DBException {
+    return aggregate(start, limit, maxEntries, true, options)[1];
+  }
+
+  private long[] aggregate(byte[] start, byte[] limit, long maxEntries, boolean sizes,
+                           ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    if (maxEntries < 0) {
+      throw new IllegalArgumentException("maxEntries cannot be negative");
+    }
+    NativeIterator iterator = db.iterator(convert(options)).bounds(start, limit);
+    try {
+      iterator.seekToFirst();
+      return iterator.aggregate(maxEntries, sizes);
+    } catch (NativeDB.DBException e) {
+      throw new DBException(e.getMessage(), e);
+    } finally {
+      iterator.delete();
+    }
+  }
+
+  public ScanPage scanPage(byte[] start, byte[] limit, int maxEntries, long maxBytes)
+      throws DBException {
+    return scanPage(start, limit, maxEntries, maxBytes, new ReadOptions());
+  }
+
+  /**
+   * Reads up to maxEntries entries, or about maxBytes of keys and values, from
+   * start up to, but excluding, limit into one packed page.  The next page is
+   * read by passing the page's continuation as the start, which costs a single
+   * seek.  Either end may be null.
+   */
+  public ScanPage scanPage(byte[] start, byte[] limit, int maxEntries, long maxBytes,
+                           ReadOptions options) throws DBException {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    if (maxEntries < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+    }
+    NativeIterator iterator = db.iterator(convert(options)).bounds(start, limit);
+    try {
+      iterator.seekToFirst();
+      NativeIterator.Batch batch = new NativeIterator.Batch();
+      iterator.fill(batch, maxEntries, maxBytes);
+      return new ScanPage(batch, iterator.isValid() ? iterator.key() : null);
+    } catch (NativeDB.DBException e) {
+      throw new DBException(e.getMessage(), e);
+    } finally {
+      iterator.delete();
+    }
+  }
+
+  public ScanPublisher publisher(byte[] start, byte[] limit) {
+    return publisher(start, limit, new ReadOptions(), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Publishes the entries from start up to, but excluding, limit to reactive
+   * streams subscribers, reading from leveldb on the given executor as demand
+   * arrives.  Either end may be null.
+   */
+  public ScanPublisher publisher(byte[] start, byte[] limit, ReadOptions options,
+                                 Executor executor) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    NativeDB.checkArgNotNull(executor, "executor");
+    return new ScanPublisher(db, convert(options), start, limit, executor);
+  }
+
+  public IteratorPool iteratorPool(int maxIdle, long maxStalenessMillis) {
+    return iteratorPool(maxIdle, maxStalenessMillis, new ReadOptions());
+  }
+
+  /**
+   * Creates a pool of iterators for short scans, which hands out iterators
+   * that may miss the writes of the last maxStalenessMillis milliseconds.  The
+   * pool is closed along with the database.
+   */
+  public IteratorPool iteratorPool(int maxIdle, long maxStalenessMillis, ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    IteratorPool rc = new IteratorPool(this, db, convert(options), maxIdle, maxStalenessMillis);
+    synchronized (pools) {
+      pools.add(rc);
+    }
+    return rc;
+  }
+
+  public GroupCommitWriter groupCommitWriter() {
+    return groupCommitWriter(100, TimeUnit.MICROSECONDS, 1024, 4 * 1024 * 1024);
+  }
+
+  /**
+   * Creates a writer which commits the writes of concurrent threads in groups,
+   * each with a single synced write.  The writer is closed along with the
+   * database, after committing the writes queued so far.
+   */
+  public GroupCommitWriter groupCommitWriter(long linger, TimeUnit unit, int maxRecords,
+                                             long maxBytes) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    GroupCommitWriter rc = new GroupCommitWriter(this, linger, unit, maxRecords, maxBytes);
+    synchronized (writers) {
+      writers.add(rc);
+    }
+    return rc;
+  }
+
+  public WriteBehindBuffer writeBehind(long maxBytes, long flushInterval, TimeUnit unit) {
+    return writeBehind(maxBytes, flushInterval, unit, new WriteOptions());
+  }
+
+  /**
+   * Creates a buffer which coalesces repeated writes of the same keys on the
+   * java heap and writes them out, with the given options, once more than
+   * maxBytes are pending or every flushInterval.  The buffer is flushed and
+   * closed along with the database.
+   */
+  public WriteBehindBuffer writeBehind(long maxBytes, long flushInterval, TimeUnit unit,
+                                       WriteOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    WriteBehindBuffer rc = new WriteBehindBuffer(this, maxBytes, flushInterval, unit, options);
+    synchronized (buffers) {
+      buffers.add(rc);
+    }
+    return rc;
+  }
+
+  public JniDBIterator bulkScan(byte[] start, byte[] limit) {
+    return bulkScan(start, limit, new ReadOptions());
+  }
+
+  /**
+   * Opens an iterator for scanning a large range, from start up to, but
+   * excluding, limit, without evicting the working set of point reads: the
+   * blocks it reads are not added to the block cache, and entries are read in
+   * large prefetched batches.  Its throughput is counted into its own
+   * statistics and into {@link #bulkScanStatistics()}.
+   */
+  public JniDBIterator bulkScan(byte[] start, byte[] limit, ReadOptions options) {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    NativeReadOptions readOptions = convert(options).fillCache(false);
+    JniDBIterator rc = new JniDBIterator(db.iterator(readOptions).bounds(start, limit));
+    rc.prefetch(BULK_SCAN_ENTRIES, BULK_SCAN_BYTES);
+    rc.statistics(new ScanStatistics(bulkScanStatistics));
+    return rc;
+  }
+
+  /**
+   * @return the throughput counters of all the bulk scans of this database
+   */
+  public ScanStatistics bulkScanStatistics() {
+    return bulkScanStatistics;
+  }
+
   public void put(byte[] key, byte[] value) throws DBException {
     put(key, value, new WriteOptions());
   }
@@ -133,6 +583,27 @@ public class JniDB implements DB {
     }
   }
 
+  public void put(ByteBuffer key, ByteBuffer value) throws DBException {
+    put(key, value, new WriteOptions());
+  }
+
+  /**
+   * Stores the remaining bytes of {@code value} under the remaining bytes of {@code key}.
+   * Direct buffers are handed to leveldb in place.
+   */
+  public Snapshot put(ByteBuffer key, ByteBuffer value, WriteOptions options)
+      throws DBException {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    try {
+      db.put(convert(options), key, value);
+      return null;
+    } catch (NativeDB.DBException e) {
+      throw new DBException(e.getMessage(), e);
+    }
+  }
+
   public void delete(byte[] key) throws DBException {
     delete(key, new WriteOptions());
   }
@@ -149,6 +620,22 @@ public class JniDB implements DB {
     }
   }
 
+  public void delete(ByteBuffer key) throws DBException {
+    delete(key, new WriteOptions());
+  }
+
+  public Snapshot delete(ByteBuffer key, WriteOptions options) throws DBException {
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    try {
+      db.delete(convert(options), key);
+      return null;
+    } catch (NativeDB.DBException e) {
+      throw new DBException(e.getMessage(), e);
+    }
+  }
+
   public void write(WriteBatch updates) throws DBException {
     write(updates, new WriteOptions());
   }
@@ -165,10 +652,234 @@ public class JniDB implements DB {
     }
   }
 
+  /**
+   * Applies a read-modify-write to its key while the key is locked against the
+   * other merges and conditional writes of this database.  Plain puts and
+   * deletes of the key are not locked out, and one landing in the middle of
+   * the merge is lost.
+   *
+   * @return the new value of the key
+   */
+  public byte[] merge(Merge merge) throws DBException {
+    NativeDB.checkArgNotNull(merge, "merge");
+    return merge(Collections.singletonList(merge), new WriteOptions())[0];
+  }
+
+  /**
+   * Applies the read-modify-writes in order, several of which may update the
+   * same key, and writes their results in a single batch.
+   *
+   * @return the new value of the key of each merge, once it was applied
+   */
+  public byte[][] merge(List<Merge> merges, WriteOptions options) throws DBException {
+    NativeDB.checkArgNotNull(merges, "merges");
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    byte[][] keys = new byte[merges.size()][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = merges.get(i).rawKey();
+    }
+    byte[][] rc = new byte[keys.length][];
+    int[] locked = keyLocks.lock(keys);
+    try {
+      Map<ByteBuffer, byte[]> values = new HashMap<ByteBuffer, byte[]>();
+      Map<ByteBuffer, byte[]> updates = new LinkedHashMap<ByteBuffer, byte[]>();
+      for (int i = 0; i < keys.length; i++) {
+        ByteBuffer key = ByteBuffer.wrap(keys[i]);
+        byte[] current = values.containsKey(key) ? values.get(key) : get(keys[i]);
+        byte[] value = merges.get(i).apply(current);
+        values.put(key, value);
+        if (value != current) {
+          updates.put(key, value);
+        }
+        rc[i] = value;
+      }
+      write(updates, options);
+    } finally {
+      keyLocks.unlock(locked);
+    }
+    for (int i = 0; i < rc.length; i++) {
+      rc[i] = rc[i] == null ? null : rc[i].clone();
+    }
+    return rc;
+  }
+
+  /**
+   * Adds delta to the int64 value of the key.
+   *
+   * @return the new value
+   */
+  public long add(byte[] key, long delta) throws DBException {
+    return Merge.int64(merge(Merge.add(key, delta)));
+  }
+
+  public void append(byte[] key, byte[] suffix) throws DBException {
+    merge(Merge.append(key, suffix));
+  }
+
+  /**
+   * @return the int64 value of the key, once raised to value
+   */
+  public long max(byte[] key, long value) throws DBException {
+    return Merge.int64(merge(Merge.max(key, value)));
+  }
+
+  /**
+   * @return the int64 value of the key, once lowered to value
+   */
+  public long min(byte[] key, long value) throws DBException {
+    return Merge.int64(merge(Merge.min(key, value)));
+  }
+
+  /**
+   * @return true if the key had no value and was set
+   */
+  public boolean setIfAbsent(byte[] key, byte[] value) throws DBException {
+    return putIfAbsent(key, value) == null;
+  }
+
+  /**
+   * Sets the value of the key if it has none.
+   *
+   * @return the current value of the key, or null if it had none and was set
+   */
+  public byte[] putIfAbsent(byte[] key, byte[] value) throws DBException {
+    NativeDB.checkArgNotNull(key, "key");
+    NativeDB.checkArgNotNull(value, "value");
+    int[] locked = keyLocks.lock(key);
+    try {
+      byte[] rc = get(key);
+      if (rc == null) {
+        put(key, value);
+      }
+      return rc;
+    } finally {
+      keyLocks.unlock(locked);
+    }
+  }
+
+  /**
+   * Sets the value of the key, or deletes it if value is null, if its current
+   * value is expected, or it has no value and expected is null.  The key is
+   * locked against the other merges and conditional writes of this database
+   * between the check and the write, but not against plain puts and deletes.
+   *
+   * @return true if the key was updated
+   */
+  public boolean compareAndSet(byte[] key, byte[] expected, byte[] value) throws DBException {
+    NativeDB.checkArgNotNull(key, "key");
+    int[] locked = keyLocks.lock(key);
+    try {
+      if (!Arrays.equals(get(key), expected)) {
+        return false;
+      }
+      if (value == null) {
+        delete(key);
+      } else {
+        put(key, value);
+      }
+      return true;
+    } finally {
+      keyLocks.unlock(locked);
+    }
+  }
+
+  /**
+   * @return true if the key had the expected value and was deleted
+   */
+  public boolean deleteIfEquals(byte[] key, byte[] expected) throws DBException {
+    NativeDB.checkArgNotNull(expected, "expected");
+    return compareAndSet(key, expected, null);
+  }
+
+  public ConditionalWriteBatch createConditionalWriteBatch() {
+    return new ConditionalWriteBatch();
+  }
+
+  public boolean write(ConditionalWriteBatch updates) throws DBException {
+    return write(updates, new WriteOptions());
+  }
+
+  /**
+   * Writes the puts and deletes of the batch in one batch if every key it
+   * expects has the expected value, with the keys of both the expectations and
+   * the updates locked.
+   *
+   * @return true if the batch was written
+   */
+  public boolean write(ConditionalWriteBatch updates, WriteOptions options) throws DBException {
+    NativeDB.checkArgNotNull(updates, "updates");
+    if (db == null) {
+      throw new DBException("Closed");
+    }
+    List<byte[]> keys = new ArrayList<byte[]>();
+    for (ByteBuffer key : updates.expected().keySet()) {
+      keys.add(key.array());
+    }
+    for (ByteBuffer key : updates.updates().keySet()) {
+      keys.add(key.array());
+    }
+    int[] locked = keyLocks.lock(keys.toArray(new byte[keys.size()][]));
+    try {
+      for (Map.Entry<ByteBuffer, byte[]> expected : updates.expected().entrySet()) {
+        if (!Arrays.equals(get(expected.getKey().array()), expected.getValue())) {
+          return false;
+        }
+      }
+      write(updates.updates(), options);
+      return true;
+    } finally {
+      keyLocks.unlock(locked);
+    }
+  }
+
+  /**
+   * Writes the updates in a single batch, deleting the keys mapped to null.
+   */
+  private void write(Map<ByteBuffer, byte[]> updates, WriteOptions options) {
+    if (updates.isEmpty()) {
+      return;
+    }
+    if (updates.size() == 1) {
+      Map.Entry<ByteBuffer, byte[]> update = updates.entrySet().iterator().next();
+      if (update.getValue() == null) {
+        delete(update.getKey().array(), options);
+      } else {
+        put(update.getKey().array(), update.getValue(), options);
+      }
+      return;
+    }
+    JniHeapWriteBatch batch = createHeapWriteBatch();
+    try {
+      for (Map.Entry<ByteBuffer, byte[]> update : updates.entrySet()) {
+        if (update.getValue() == null) {
+          batch.delete(update.getKey().array());
+        } else {
+          batch.put(update.getKey().array(), update.getValue());
+        }
+      }
+      write(batch, options);
+    } finally {
+      batch.close();
+    }
+  }
+
   public WriteBatch createWriteBatch() {
     return new JniWriteBatch(new NativeWriteBatch());
   }
 
+  /**
+   * Creates a batch which is encoded on the java heap, so that building it
+   * makes no native calls.  When it is written the records are copied to
+   * native memory once and added with one call per record, which costs about
+   * as much as building a plain batch, so it saves work on the thread building
+   * the batch rather than in total.
+   */
+  public JniHeapWriteBatch createHeapWriteBatch() {
+    return new JniHeapWriteBatch(new NativeWriteBatch());
+  }
+
   public Snapshot getSnapshot() {
     if (db == null) {
       throw new DBException("Closed");
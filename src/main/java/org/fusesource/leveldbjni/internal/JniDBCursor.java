@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor over the entries of a database which copies keys and values into
+ * caller owned holders or buffers, so that a scan loop creates no garbage.
+ * Keys and values are only read out of leveldb when asked for, and the slices
+ * read for the current entry are reused until the cursor moves.
+ *
+ * <pre>
+ * JniDBCursor.Holder key = new JniDBCursor.Holder();
+ * for (cursor.seekToFirst(); cursor.isValid(); cursor.next()) {
+ *   cursor.key(key);
+ *   ...
+ * }
+ * </pre>
+ */
+public class JniDBCursor implements Closeable {
+
+  private final NativeIterator iterator;
+  private long keySlice;
+  private long valueSlice;
+
+  JniDBCursor(NativeIterator iterator) {
+    this.iterator = iterator;
+  }
+
+  public void close() {
+    reset();
+    iterator.delete();
+  }
+
+  public void seek(byte[] key) {
+    reset();
+    try {
+      iterator.seek(key);
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Positions the cursor at the first key at or past the remaining bytes of the
+   * buffer.  The buffer position is left unchanged.
+   */
+  public void seek(ByteBuffer key) {
+    reset();
+    NativeDB.checkArgNotNull(key, "key");
+    NativeBuffer copy = NativeMemory.isAddressable(key) ? null : NativeBuffer.create(key);
+    try {
+      iterator.seek(copy == null ? NativeMemory.address(key) : copy.pointer(), key.remaining());
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (copy != null) {
+        copy.delete();
+      }
+    }
+  }
+
+  /**
+   * Positions the cursor at the last key at or before the target.
+   * @return true iff the cursor is positioned at an entry
+   */
+  public boolean seekForPrev(byte[] key) {
+    reset();
+    try {
+      return iterator.seekForPrev(key);
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void seekToFirst() {
+    reset();
+    iterator.seekToFirst();
+  }
+
+  public void seekToLast() {
+    reset();
+    iterator.seekToLast();
+  }
+
+  /**
+   * @return true iff the cursor is positioned at an entry
+   */
+  public boolean isValid() {
+    return iterator.isValid();
+  }
+
+  /**
+   * Moves to the next entry.
+   * REQUIRES: {@link #isValid()}
+   * @return true iff the cursor is positioned at an entry afterwards
+   */
+  public boolean next() {
+    reset();
+    try {
+      iterator.next();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+    return iterator.isValid();
+  }
+
+  /**
+   * Moves to the previous entry.
+   * REQUIRES: {@link #isValid()}
+   * @return true iff the cursor is positioned at an entry afterwards
+   */
+  public boolean prev() {
+    reset();
+    try {
+      iterator.prev();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+    return iterator.isValid();
+  }
+
+  public int keyLength() {
+    return length(keySlice());
+  }
+
+  public int valueLength() {
+    return length(valueSlice());
+  }
+
+  /**
+   * Copies the current key into the holder, growing it when needed.
+   * @return the holder
+   */
+  public Holder key(Holder holder) {
+    return holder.set(keySlice());
+  }
+
+  /**
+   * Copies the current value into the holder, growing it when needed.
+   * @return the holder
+   */
+  public Holder value(Holder holder) {
+    return holder.set(valueSlice());
+  }
+
+  /**
+   * Copies as much of the current key as fits into the buffer's remaining
+   * space.  The buffer position is left unchanged and its limit is set to the
+   * end of the copied bytes.
+   *
+   * @return the full length of the key
+   */
+  public int key(ByteBuffer buffer) {
+    return copy(keySlice(), buffer);
+  }
+
+  /**
+   * @see #key(ByteBuffer)
+   * @return the full length of the value
+   */
+  public int value(ByteBuffer buffer) {
+    return copy(valueSlice(), buffer);
+  }
+
+  private long keySlice() {
+    if (keySlice == 0) {
+      keySlice = slice(true);
+    }
+    return keySlice;
+  }
+
+  private long valueSlice() {
+    if (valueSlice == 0) {
+      valueSlice = slice(false);
+    }
+    return valueSlice;
+  }
+
+  private long slice(boolean key) {
+    if (!iterator.isValid()) {
+      throw new NoSuchElementException();
+    }
+    try {
+      return key ? iterator.keySlice() : iterator.valueSlice();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void reset() {
+    if (keySlice != 0) {
+      NativeSlice.SliceJNI.delete(keySlice);
+      keySlice = 0;
+    }
+    if (valueSlice != 0) {
+      NativeSlice.SliceJNI.delete(valueSlice);
+      valueSlice = 0;
+    }
+  }
+
+  private static int length(long slice) {
+    long rc = NativeSlice.sizeAt(slice);
+    if (rc > Integer.MAX_VALUE) {
+      throw new ArrayIndexOutOfBoundsException(
+          "Native slice is larger than the maximum Java array");
+    }
+    return (int) rc;
+  }
+
+  private static int copy(long slice, ByteBuffer buffer) {
+    NativeDB.checkArgNotNull(buffer, "buffer");
+    if (buffer.isReadOnly()) {
+      throw new IllegalArgumentException("The buffer cannot be read-only");
+    }
+    int length = length(slice);
+    int copied = Math.min(length, buffer.remaining());
+    NativeSlice.copy(NativeSlice.dataAt(slice), buffer, copied);
+    buffer.limit(buffer.position() + copied);
+    return length;
+  }
+
+  /**
+   * A growable byte array which the cursor copies keys and values into.  Only
+   * the first {@link #length()} bytes of {@link #data()} are meaningful.
+   */
+  public static final class Holder {
+    private byte[] data;
+    private int length;
+
+    public Holder() {
+      this(64);
+    }
+
+    public Holder(int capacity) {
+      data = new byte[capacity];
+    }
+
+    public byte[] data() {
+      return data;
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public byte[] toByteArray() {
+      return Arrays.copyOf(data, length);
+    }
+
+    Holder set(long slice) {
+      int size = JniDBCursor.length(slice);
+      if (size > data.length) {
+        data = new byte[Math.max(size, (int) Math.min(2L * data.length, Integer.MAX_VALUE - 8))];
+      }
+      NativeSlice.copy(NativeSlice.dataAt(slice), data, 0, size);
+      length = size;
+      return this;
+    }
+  }
+}
@@ -33,7 +33,6 @@
 package org.fusesource.leveldbjni.internal;
 
 import java.util.AbstractMap;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import org.iq80.leveldb.DBIterator;
@@ -43,14 +42,171 @@ import org.iq80.leveldb.DBIterator;
  */
 public class JniDBIterator implements DBIterator {
 
-  private final NativeIterator iterator;
+  private NativeIterator iterator;
+  private final IteratorPool pool;
+  private NativeIterator.Batch batch;
+  private int prefetchEntries;
+  private long prefetchBytes;
+  private ScanStatistics statistics;
+  private boolean closed;
+  private boolean forward = true;
 
   JniDBIterator(NativeIterator iterator) {
+    this(iterator, null);
+  }
+
+  JniDBIterator(NativeIterator iterator, IteratorPool pool) {
     this.iterator = iterator;
+    this.pool = pool;
+  }
+
+  /**
+   * Moves the iterator onto the latest state of the database and back to its
+   * current key, so that it sees the writes made since it was created.
+   *
+   * @see NativeIterator#refresh()
+   */
+  public void refresh() {
+    sync();
+    try {
+      iterator().refresh();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Switches the iterator to prefetching mode: while moving forward, entries are
+   * copied out of leveldb in runs of up to maxEntries entries or maxBytes of keys
+   * and values, and served from a reusable buffer.  Any other movement drops the
+   * prefetched entries and repositions the native iterator first, and nothing
+   * is prefetched again until the iterator moves forward.
+   *
+   * @return this iterator
+   */
+  public JniDBIterator prefetch(int maxEntries, long maxBytes) {
+    if (maxEntries < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+    }
+    sync();
+    if (batch == null) {
+      batch = new NativeIterator.Batch();
+    }
+    prefetchEntries = maxEntries;
+    prefetchBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Skips the entries which do not match the filter, from the next movement on.
+   *
+   * @return this iterator
+   * @see NativeIterator#filter(ScanFilter)
+   */
+  public JniDBIterator filter(ScanFilter filter) {
+    sync();
+    iterator().filter(filter);
+    return this;
+  }
+
+  /**
+   * Counts the entries and bytes read in prefetching mode, and the time spent
+   * reading them, into the given statistics.
+   *
+   * @return this iterator
+   */
+  public JniDBIterator statistics(ScanStatistics statistics) {
+    this.statistics = statistics;
+    return this;
+  }
+
+  /**
+   * @return the statistics the iterator counts into, or null
+   */
+  public ScanStatistics statistics() {
+    return statistics;
+  }
+
+  /**
+   * @return true if the batch holds the current entry, fetching the next run if needed.
+   */
+  private boolean fetch() {
+    if (batch.isValid()) {
+      return true;
+    }
+    if (!iterator().isValid()) {
+      return false;
+    }
+    try {
+      long start = statistics == null ? 0 : System.nanoTime();
+      iterator().fill(batch, prefetchEntries, prefetchBytes);
+      if (statistics != null) {
+        statistics.record(batch.count(), batch.length(), System.nanoTime() - start);
+      }
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+    return batch.isValid();
+  }
+
+  /**
+   * Moves the native iterator back to the current entry and drops the prefetched ones.
+   */
+  private void sync() {
+    if (batch == null) {
+      return;
+    }
+    if (batch.isValid()) {
+      byte[] key = batch.key();
+      batch.clear();
+      try {
+        iterator().seek(key);
+      } catch (NativeDB.DBException e) {
+        throw new RuntimeException(e);
+      }
+    } else {
+      batch.clear();
+    }
+  }
+
+  /**
+   * @return true if the current entry is served from the prefetched entries,
+   *     which is only the case while the iterator moves forward
+   */
+  private boolean prefetching() {
+    return batch != null && forward;
   }
 
+  private void drop() {
+    if (batch != null) {
+      batch.clear();
+    }
+  }
+
+  /**
+   * Deletes the iterator, or hands it back to the pool it was borrowed from.
+   * The iterator cannot be used once it is closed, closing it again does nothing.
+   */
   public void close() {
-    iterator.delete();
+    if (closed) {
+      return;
+    }
+    closed = true;
+    batch = null;
+    if (pool != null) {
+      pool.release(iterator);
+    } else {
+      iterator.delete();
+    }
+    // a pooled native iterator may already be lent to someone else
+    iterator = null;
+  }
+
+  private NativeIterator iterator() {
+    if (closed) {
+      throw new IllegalStateException("The iterator is closed");
+    }
+    return iterator;
   }
 
   public void remove() {
@@ -65,8 +221,10 @@ public class JniDBIterator implements DBIterator {
    * @param key target
    */
   public void seek(byte[] key) {
+    drop();
+    forward = true;
     try {
-      iterator.seek(key);
+      iterator().seek(key);
     } catch (NativeDB.DBException e) {
       if (e.isNotFound()) {
         throw new NoSuchElementException();
@@ -82,13 +240,10 @@ public class JniDBIterator implements DBIterator {
    * @param key target
    */
   public void seekForPrev(byte[] key) {
+    drop();
+    forward = false;
     try {
-      iterator.seek(key);
-      if (!Valid()) {
-        iterator.seekToLast();
-      } else if (!Arrays.equals(iterator.key(), key)) {
-        iterator.prev();
-      }
+      iterator().seekForPrev(key);
     } catch (NativeDB.DBException e) {
       if (e.isNotFound()) {
         throw new NoSuchElementException();
@@ -103,7 +258,9 @@ public class JniDBIterator implements DBIterator {
    * after this call iff the source is not empty.
    */
   public void seekToFirst() {
-    iterator.seekToFirst();
+    drop();
+    forward = true;
+    iterator().seekToFirst();
   }
 
   /**
@@ -111,7 +268,9 @@ public class JniDBIterator implements DBIterator {
    *  after this call iff the source is not empty.
    */
   public void seekToLast() {
-    iterator.seekToLast();
+    drop();
+    forward = false;
+    iterator().seekToLast();
   }
 
   /**
@@ -120,7 +279,10 @@ public class JniDBIterator implements DBIterator {
    */
   @Override
   public boolean Valid() {
-    return iterator.isValid();
+    if (prefetching()) {
+      return fetch();
+    }
+    return iterator().isValid();
   }
 
   /**
@@ -131,8 +293,12 @@ public class JniDBIterator implements DBIterator {
    */
   @Override
   public byte[] key() {
+    if (prefetching()) {
+      fetch();
+      return batch.key();
+    }
     try {
-      return iterator.key();
+      return iterator().key();
     } catch (NativeDB.DBException e) {
       throw new RuntimeException(e);
     }
@@ -146,8 +312,28 @@ public class JniDBIterator implements DBIterator {
    */
   @Override
   public byte[] value() {
+    if (prefetching()) {
+      fetch();
+      return batch.value();
+    }
+    try {
+      return iterator().value();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * REQUIRES: {@link #Valid()}
+   * @return the length of the value for the current entry, without copying it
+   */
+  public long valueSize() {
+    if (prefetching()) {
+      fetch();
+      return batch.valueSize();
+    }
     try {
-      return iterator.value();
+      return iterator().valueSize();
     } catch (NativeDB.DBException e) {
       throw new RuntimeException(e);
     }
@@ -161,18 +347,24 @@ public class JniDBIterator implements DBIterator {
    */
   @Deprecated
   public Map.Entry<byte[], byte[]> peekNext() {
-    if (!iterator.isValid()) {
+    if (prefetching()) {
+      if (!fetch()) {
+        throw new NoSuchElementException();
+      }
+      return new AbstractMap.SimpleImmutableEntry<>(batch.key(), batch.value());
+    }
+    if (!iterator().isValid()) {
       throw new NoSuchElementException();
     }
     try {
-      return new AbstractMap.SimpleImmutableEntry<>(iterator.key(), iterator.value());
+      return new AbstractMap.SimpleImmutableEntry<>(iterator().key(), iterator().value());
     } catch (NativeDB.DBException e) {
       throw new RuntimeException(e);
     }
   }
 
   public boolean hasNext() {
-    return iterator.isValid();
+    return Valid();
   }
 
   /**
@@ -183,11 +375,16 @@ public class JniDBIterator implements DBIterator {
    */
   public Map.Entry<byte[], byte[]> next() {
     Map.Entry<byte[], byte[]> rc = this.peekNext();
+    if (prefetching()) {
+      batch.next();
+      return rc;
+    }
     try {
-      iterator.next();
+      iterator().next();
     } catch (NativeDB.DBException e) {
       throw new RuntimeException(e);
     }
+    forward = true;
     return rc;
   }
 
@@ -197,7 +394,7 @@ public class JniDBIterator implements DBIterator {
    * @return An iterator is either positioned at a key/value pair
    */
   public boolean hasPrev() {
-    return iterator.isValid();
+    return Valid();
   }
 
   /**
@@ -208,11 +405,14 @@ public class JniDBIterator implements DBIterator {
    */
   @Deprecated
   public Map.Entry<byte[], byte[]> peekPrev() {
-    if (!iterator.isValid()) {
+    if (prefetching()) {
+      return peekNext();
+    }
+    if (!iterator().isValid()) {
       throw new NoSuchElementException();
     }
     try {
-      return new AbstractMap.SimpleImmutableEntry<>(iterator.key(), iterator.value());
+      return new AbstractMap.SimpleImmutableEntry<>(iterator().key(), iterator().value());
     } catch (NativeDB.DBException e) {
       throw new RuntimeException(e);
     }
@@ -226,8 +426,10 @@ public class JniDBIterator implements DBIterator {
    */
   public Map.Entry<byte[], byte[]> prev() {
     Map.Entry<byte[], byte[]> rc = this.peekPrev();
+    sync();
+    forward = false;
     try {
-      iterator.prev();
+      iterator().prev();
     } catch (NativeDB.DBException e) {
       throw new RuntimeException(e);
     }
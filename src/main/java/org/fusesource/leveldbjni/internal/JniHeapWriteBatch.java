@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.Arrays;
+import org.iq80.leveldb.WriteBatch;
+
+/**
+ * A write batch which encodes its records on the java heap, in leveldb's wire
+ * format, instead of adding each of them to the native batch as it is made.
+ * Building the batch makes no JNI calls; when the batch is written, the encoded
+ * records are copied to native memory once and added to the native batch from
+ * there, with one JNI call but no copy or allocation per record.
+ *
+ * <p>The records of a plain {@link JniWriteBatch} cannot be read back from the
+ * native side, so appending one moves the batch over to the native batch for
+ * good: the records encoded so far are added to it, and so is every record
+ * added until the batch is cleared.</p>
+ */
+public class JniHeapWriteBatch extends JniWriteBatch {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private byte[] rep = new byte[INITIAL_CAPACITY];
+  private int size = NativeWriteBatch.HEADER_SIZE;
+  private int count;
+  private boolean installed;
+  private boolean spilled;
+
+  JniHeapWriteBatch(NativeWriteBatch writeBatch) {
+    super(writeBatch);
+  }
+
+  @Override
+  public WriteBatch put(byte[] key, byte[] value) {
+    if (spilled) {
+      return super.put(key, value);
+    }
+    NativeDB.checkArgNotNull(key, "key");
+    NativeDB.checkArgNotNull(value, "value");
+    ensure(11 + key.length + value.length);
+    rep[size++] = NativeWriteBatch.TYPE_VALUE;
+    putLengthPrefixed(key);
+    putLengthPrefixed(value);
+    added(1);
+    return this;
+  }
+
+  @Override
+  public WriteBatch delete(byte[] key) {
+    if (spilled) {
+      return super.delete(key);
+    }
+    NativeDB.checkArgNotNull(key, "key");
+    ensure(6 + key.length);
+    rep[size++] = NativeWriteBatch.TYPE_DELETION;
+    putLengthPrefixed(key);
+    added(1);
+    return this;
+  }
+
+  @Override
+  public WriteBatch clear() {
+    if (spilled) {
+      super.clear();
+      spilled = false;
+    }
+    size = NativeWriteBatch.HEADER_SIZE;
+    count = 0;
+    Arrays.fill(rep, 0, size, (byte) 0);
+    installed = false;
+    return this;
+  }
+
+  @Override
+  public long approximateSize() {
+    return spilled ? super.approximateSize() : size;
+  }
+
+  /**
+   * @return the number of records in the batch
+   */
+  @Override
+  public int count() {
+    return spilled ? super.count() : count;
+  }
+
+  @Override
+  public WriteBatch append(WriteBatch source) {
+    if (!spilled && source instanceof JniHeapWriteBatch && !((JniHeapWriteBatch) source).spilled) {
+      JniHeapWriteBatch other = (JniHeapWriteBatch) source;
+      append(other.rep, NativeWriteBatch.HEADER_SIZE, other.size - NativeWriteBatch.HEADER_SIZE,
+          other.count);
+      return this;
+    }
+    if (!(source instanceof JniWriteBatch)) {
+      throw new UnsupportedOperationException();
+    }
+    spill();
+    return super.append(source);
+  }
+
+  /**
+   * @return true if the records are held by the native batch instead of the heap
+   */
+  boolean spilled() {
+    return spilled;
+  }
+
+  /**
+   * @return a copy of the encoded records, without the header
+   */
+  byte[] records() {
+    if (spilled) {
+      throw new IllegalStateException("The records are held by the native batch");
+    }
+    return Arrays.copyOfRange(rep, NativeWriteBatch.HEADER_SIZE, size);
+  }
+
+  /**
+   * Appends records encoded by another batch.
+   */
+  void append(byte[] records, int offset, int length, int count) {
+    if (spilled) {
+      super.writeBatch().append(records, offset, length);
+      count(super.count() + count);
+      return;
+    }
+    ensure(length);
+    System.arraycopy(records, offset, rep, size, length);
+    size += length;
+    added(count);
+  }
+
+  /**
+   * @return the native batch, holding the records encoded so far
+   */
+  @Override
+  public NativeWriteBatch writeBatch() {
+    NativeWriteBatch rc = super.writeBatch();
+    if (!installed && !spilled) {
+      rc.setContents(rep, size);
+      installed = true;
+    }
+    return rc;
+  }
+
+  private void spill() {
+    if (!spilled) {
+      writeBatch();
+      count(count);
+      spilled = true;
+    }
+  }
+
+  private void added(int records) {
+    count += records;
+    rep[8] = (byte) count;
+    rep[9] = (byte) (count >>> 8);
+    rep[10] = (byte) (count >>> 16);
+    rep[11] = (byte) (count >>> 24);
+    installed = false;
+  }
+
+  private void putLengthPrefixed(byte[] data) {
+    int value = data.length;
+    while ((value & ~0x7f) != 0) {
+      rep[size++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    rep[size++] = (byte) value;
+    System.arraycopy(data, 0, rep, size, data.length);
+    size += data.length;
+  }
+
+  private void ensure(int length) {
+    long required = (long) size + length;
+    if (required <= rep.length) {
+      return;
+    }
+    if (required > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("WriteBatch too large");
+    }
+    rep = Arrays.copyOf(rep, (int) Math.min(Integer.MAX_VALUE - 8,
+        Math.max(required, (long) rep.length << 1)));
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the keys of a database without ever copying a value out of
+ * leveldb.  {@link #valueSize()} reports the length of the current value when
+ * that is all that is needed.
+ */
+public class JniKeyIterator implements Iterator<byte[]>, Closeable {
+
+  private final NativeIterator iterator;
+
+  JniKeyIterator(NativeIterator iterator) {
+    this.iterator = iterator;
+  }
+
+  public void close() {
+    iterator.delete();
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Position at the first key in the source that is at or past target.
+   * @param key target
+   */
+  public void seek(byte[] key) {
+    try {
+      iterator.seek(key);
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void seekToFirst() {
+    iterator.seekToFirst();
+  }
+
+  public void seekToLast() {
+    iterator.seekToLast();
+  }
+
+  /**
+   * @return true iff the iterator is positioned at a key
+   */
+  public boolean Valid() {
+    return iterator.isValid();
+  }
+
+  /**
+   * REQUIRES: {@link #Valid()}
+   * @return the current key
+   */
+  public byte[] key() {
+    try {
+      return iterator.key();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * REQUIRES: {@link #Valid()}
+   * @return the length of the value for the current key
+   */
+  public long valueSize() {
+    try {
+      return iterator.valueSize();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public boolean hasNext() {
+    return iterator.isValid();
+  }
+
+  /**
+   * Moves to the next key.
+   * REQUIRES: {@link #Valid()}
+   * @return the current key
+   */
+  public byte[] next() {
+    byte[] rc = current();
+    try {
+      iterator.next();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+    return rc;
+  }
+
+  public boolean hasPrev() {
+    return iterator.isValid();
+  }
+
+  /**
+   * Moves to the previous key.
+   * REQUIRES: {@link #Valid()}
+   * @return the current key
+   */
+  public byte[] prev() {
+    byte[] rc = current();
+    try {
+      iterator.prev();
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+    return rc;
+  }
+
+  private byte[] current() {
+    if (!iterator.isValid()) {
+      throw new NoSuchElementException();
+    }
+    return key();
+  }
+}
@@ -40,6 +40,7 @@ import org.iq80.leveldb.WriteBatch;
 public class JniWriteBatch implements WriteBatch {
 
   private final NativeWriteBatch writeBatch;
+  private int count;
 
   JniWriteBatch(NativeWriteBatch writeBatch) {
     this.writeBatch = writeBatch;
@@ -51,17 +52,20 @@ public class JniWriteBatch implements WriteBatch {
 
   public WriteBatch put(byte[] key, byte[] value) {
     writeBatch.put(key, value);
+    count++;
     return this;
   }
 
   public WriteBatch delete(byte[] key) {
     writeBatch.delete(key);
+    count++;
     return this;
   }
 
   @Override
   public WriteBatch clear() {
     writeBatch.clear();
+    count = 0;
     return this;
   }
 
@@ -73,13 +77,26 @@ public class JniWriteBatch implements WriteBatch {
   @Override
   public WriteBatch append(WriteBatch source) {
     if (source instanceof JniWriteBatch) {
-      writeBatch.append(((JniWriteBatch) source).writeBatch);
+      JniWriteBatch other = (JniWriteBatch) source;
+      writeBatch.append(other.writeBatch());
+      count += other.count();
     } else {
       throw new UnsupportedOperationException();
     }
     return this;
   }
 
+  /**
+   * @return the number of records in the batch
+   */
+  int count() {
+    return count;
+  }
+
+  void count(int count) {
+    this.count = count;
+  }
+
   public NativeWriteBatch writeBatch() {
     return writeBatch;
   }
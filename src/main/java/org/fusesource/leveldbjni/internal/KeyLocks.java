@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks, each guarding the keys which hash to it, so that
+ * writers of unrelated keys rarely contend.  Several keys are locked in stripe
+ * order, which keeps threads locking overlapping sets of keys from deadlocking.
+ */
+final class KeyLocks {
+
+  private final ReentrantLock[] stripes;
+
+  KeyLocks(int stripes) {
+    int size = Integer.highestOneBit(Math.max(1, stripes - 1) << 1);
+    this.stripes = new ReentrantLock[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+  }
+
+  int stripe(byte[] key) {
+    int hash = Arrays.hashCode(key);
+    return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+  }
+
+  /**
+   * Locks the stripes of all the keys.
+   *
+   * @return the stripes locked, to be handed to {@link #unlock(int[])}
+   */
+  int[] lock(byte[]... keys) {
+    int[] rc = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      rc[i] = stripe(keys[i]);
+    }
+    Arrays.sort(rc);
+    int count = 0;
+    for (int i = 0; i < rc.length; i++) {
+      if (count == 0 || rc[count - 1] != rc[i]) {
+        rc[count++] = rc[i];
+      }
+    }
+    rc = Arrays.copyOf(rc, count);
+    for (int i = 0; i < rc.length; i++) {
+      stripes[rc[i]].lock();
+    }
+    return rc;
+  }
+
+  void unlock(int[] locked) {
+    for (int i = locked.length - 1; i >= 0; i--) {
+      stripes[locked[i]].unlock();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.fusesource.leveldbjni.internal;
+
+/**
+ * A read-modify-write of a single key, applied by {@link JniDB#merge} while
+ * the key is locked against other merges and conditional writes of the same
+ * database.
+ *
+ * <p>A merge reads the current value and writes the new one with two separate
+ * calls into leveldb.  Plain puts, deletes and write batches do not take the
+ * key locks, so one of them which lands between the read and the write of a
+ * merge of the same key is lost.  Keys updated through merges should only be
+ * written through merges and conditional writes.  Merges cannot be added to a
+ * {@link org.iq80.leveldb.WriteBatch}; several of them are written together by
+ * {@link JniDB#merge(java.util.List, org.iq80.leveldb.WriteOptions)}.</p>
+ *
+ * <p>The int64 operators store values as 8 byte little endian numbers, the
+ * encoding of leveldb's fixed64; a missing key counts as zero.</p>
+ */
+public abstract class Merge {
+
+  private final byte[] key;
+
+  Merge(byte[] key) {
+    NativeDB.checkArgNotNull(key, "key");
+    this.key = key.clone();
+  }
+
+  public byte[] key() {
+    return key.clone();
+  }
+
+  byte[] rawKey() {
+    return key;
+  }
+
+  /**
+   * @param current the current value of the key, or null if it has none
+   * @return the new value of the key, or current to leave it unchanged
+   */
+  abstract byte[] apply(byte[] current);
+
+  /**
+   * Adds delta to the int64 value of the key.
+   */
+  public static Merge add(byte[] key, final long delta) {
+    return new Merge(key) {
+      byte[] apply(byte[] current) {
+        return int64(int64(current) + delta);
+      }
+    };
+  }
+
+  /**
+   * Appends the bytes to the value of the key.
+   */
+  public static Merge append(byte[] key, byte[] suffix) {
+    NativeDB.checkArgNotNull(suffix, "suffix");
+    final byte[] data = suffix.clone();
+    return new Merge(key) {
+      byte[] apply(byte[] current) {
+        if (current == null) {
+          return data;
+        }
+        byte[] rc = new byte[current.length + data.length];
+        System.arraycopy(current, 0, rc, 0, current.length);
+        System.arraycopy(data, 0, rc, current.length, data.length);
+        return rc;
+      }
+    };
+  }
+
+  /**
+   * Sets the int64 value of the key to value, if value is larger.
+   */
+  public static Merge max(byte[] key, final long value) {
+    return new Merge(key) {
+      byte[] apply(byte[] current) {
+        return current != null && int64(current) >= value ? current : int64(value);
+      }
+    };
+  }
+
+  /**
+   * Sets the int64 value of the key to value, if value is smaller.
+   */
+  public static Merge min(byte[] key, final long value) {
+    return new Merge(key) {
+      byte[] apply(byte[] current) {
+        return current != null && int64(current) <= value ? current : int64(value);
+      }
+    };
+  }
+
+  /**
+   * Sets the value of the key, if it has none.
+   */
+  public static Merge setIfAbsent(byte[] key, byte[] value) {
+    NativeDB.checkArgNotNull(value, "value");
+    final byte[] data = value.clone();
+    return new Merge(key) {
+      byte[] apply(byte[] current) {
+        return current == null ? data : current;
+      }
+    };
+  }
+
+  /**
+   * @return the int64 encoding of the value
+   */
+  public static byte[] int64(long value) {
+    byte[] rc = new byte[8];
+    for (int i = 0; i < 8; i++) {
+      rc[i] = (byte) (value >>> (i * 8));
+    }
+    return rc;
+  }
+
+  /**
+   * @return the int64 stored in the value, or 0 if value is null
+   */
+  public static long int64(byte[] value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value.length != 8) {
+      throw new IllegalArgumentException("Not an int64 value: " + value.length + " bytes");
+    }
+    long rc = 0;
+    for (int i = 7; i >= 0; i--) {
+      rc = (rc << 8) | (value[i] & 0xff);
+    }
+    return rc;
+  }
+}
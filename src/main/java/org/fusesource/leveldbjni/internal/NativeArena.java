@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.fusesource.hawtjni.runtime.PointerMath;
+
+/**
+ * A per-thread, growable block of native memory used to marshal the keys and
+ * values of a single operation.  Memory handed out by an arena is only valid
+ * until the arena is {@link #release() released}, which resets it for the next
+ * operation on the same thread.
+ *
+ * <p>Payloads which do not fit in the block, or which exceed
+ * {@link #MAX_CAPACITY}, get a one-off allocation that is freed on release.
+ * The block grows to cover the largest operation seen, up to {@link #MAX_CAPACITY}.
+ * The block of a thread which has died is freed the next time another
+ * thread creates its arena.</p>
+ */
+final class NativeArena {
+
+  static final long INITIAL_CAPACITY = 4 * 1024;
+  static final long MAX_CAPACITY = 256 * 1024;
+
+  private static final List<NativeArena> ARENAS = new ArrayList<NativeArena>();
+  private static final ThreadLocal<NativeArena> CURRENT = new ThreadLocal<NativeArena>() {
+    @Override
+    protected NativeArena initialValue() {
+      NativeArena arena = new NativeArena(Thread.currentThread());
+      synchronized (ARENAS) {
+        reap();
+        ARENAS.add(arena);
+      }
+      return arena;
+    }
+  };
+
+  private final WeakReference<Thread> owner;
+  private long block;
+  private long capacity;
+  private long used;
+  private long demand;
+  private boolean acquired;
+  private long[] oneOffs = new long[0];
+  private int oneOffCount;
+
+  private NativeArena(Thread owner) {
+    this.owner = owner == null ? null : new WeakReference<Thread>(owner);
+  }
+
+  /**
+   * @return the arena of the current thread, or a temporary one if the current
+   *     thread's arena is already in use further up the stack.
+   */
+  static NativeArena acquire() {
+    NativeArena arena = CURRENT.get();
+    if (arena.acquired) {
+      arena = new NativeArena(null);
+    }
+    arena.acquired = true;
+    return arena;
+  }
+
+  private static void reap() {
+    for (Iterator<NativeArena> i = ARENAS.iterator(); i.hasNext(); ) {
+      NativeArena arena = i.next();
+      if (arena.owner.get() == null) {
+        arena.free();
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Copies the array into the arena.
+   *
+   * @return the address of the copy
+   */
+  long copy(byte[] data) {
+    return copy(data, 0, data.length);
+  }
+
+  long copy(byte[] data, int offset, int length) {
+    long rc = allocate(length);
+    copy(data, offset, rc, length);
+    return rc;
+  }
+
+  /**
+   * Copies two arrays back to back into the arena.
+   *
+   * @return the address of the first copy, the second one follows it directly
+   */
+  long copy(byte[] first, byte[] second) {
+    long rc = allocate(first.length + second.length);
+    copy(first, 0, rc, first.length);
+    copy(second, 0, PointerMath.add(rc, first.length), second.length);
+    return rc;
+  }
+
+  /**
+   * Copies straight from the java heap when the JVM allows it, so that the
+   * copy makes no JNI call.
+   */
+  private static void copy(byte[] data, int offset, long address, int length) {
+    if (NativeMemory.AVAILABLE) {
+      NativeMemory.copy(data, offset, address, length);
+    } else {
+      NativeBuffer.NativeBufferJNI.buffer_copy(data, offset, address, 0, length);
+    }
+  }
+
+  long allocate(long size) {
+    demand += size;
+    if (used + size > capacity) {
+      if (used != 0 || size > MAX_CAPACITY) {
+        return oneOff(size);
+      }
+      resize(size);
+    }
+    long rc = PointerMath.add(block, used);
+    used += size;
+    return rc;
+  }
+
+  /**
+   * Frees any one-off allocations and resets the arena so that its memory can be
+   * handed out again.
+   */
+  void release() {
+    for (int i = 0; i < oneOffCount; i++) {
+      NativeBuffer.NativeBufferJNI.free(oneOffs[i]);
+      oneOffs[i] = 0;
+    }
+    oneOffCount = 0;
+    if (owner == null) {
+      free();
+    } else if (demand > capacity && demand <= MAX_CAPACITY) {
+      resize(demand);
+    }
+    used = 0;
+    demand = 0;
+    acquired = false;
+  }
+
+  private long oneOff(long size) {
+    long rc = NativeBuffer.NativeBufferJNI.malloc(Math.max(size, 1));
+    if (rc == 0) {
+      throw new OutOfMemoryError("Failure allocating native heap memory");
+    }
+    if (oneOffCount == oneOffs.length) {
+      long[] grown = new long[Math.max(4, oneOffCount * 2)];
+      System.arraycopy(oneOffs, 0, grown, 0, oneOffCount);
+      oneOffs = grown;
+    }
+    oneOffs[oneOffCount++] = rc;
+    return rc;
+  }
+
+  private void resize(long size) {
+    long next = Math.max(capacity, INITIAL_CAPACITY);
+    while (next < size) {
+      next <<= 1;
+    }
+    next = Math.min(next, MAX_CAPACITY);
+    long rc = NativeBuffer.NativeBufferJNI.malloc(next);
+    if (rc == 0) {
+      throw new OutOfMemoryError("Failure allocating native heap memory");
+    }
+    free();
+    block = rc;
+    capacity = next;
+  }
+
+  private void free() {
+    if (block != 0) {
+      NativeBuffer.NativeBufferJNI.free(block);
+      block = 0;
+      capacity = 0;
+    }
+  }
+}
@@ -36,6 +36,7 @@ import static org.fusesource.hawtjni.runtime.ArgFlag.CRITICAL;
 import static org.fusesource.hawtjni.runtime.ArgFlag.NO_IN;
 import static org.fusesource.hawtjni.runtime.ArgFlag.NO_OUT;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.fusesource.hawtjni.runtime.JniArg;
 import org.fusesource.hawtjni.runtime.JniClass;
@@ -46,7 +47,8 @@ import org.fusesource.hawtjni.runtime.PointerMath;
  * A NativeBuffer allocates a native buffer on the heap.  It supports
  * creating sub slices/views of that buffer and manages reference tracking
  * so that the the native buffer is freed once all NativeBuffer views
- * are deleted.
+ * are deleted.  The memory comes from the {@link NativeSlabAllocator}, so
+ * a buffer may be deleted on a different thread than the one that created it.
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -90,6 +92,22 @@ public class NativeBuffer extends NativeObject {
     return rc;
   }
 
+  /**
+   * Copies the remaining bytes of the buffer into a new native buffer.
+   * The position of the source buffer is left unchanged.
+   */
+  public static NativeBuffer create(ByteBuffer data) {
+    if (data == null) {
+      return null;
+    }
+    if (data.hasArray()) {
+      return create(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+    byte[] copy = new byte[data.remaining()];
+    data.duplicate().get(copy);
+    return create(copy);
+  }
+
   public static void pushMemoryPool(int size) {
     Pool original = CURRENT_POOL.get();
     Pool next = new Pool(size, original);
@@ -245,9 +263,11 @@ public class NativeBuffer extends NativeObject {
 
   private static class Allocation extends NativeObject {
     private final AtomicInteger retained = new AtomicInteger(0);
+    private final long size;
 
     private Allocation(long size) {
-      super(NativeBufferJNI.malloc(size));
+      super(NativeSlabAllocator.allocate(size));
+      this.size = size;
     }
 
     void retain() {
@@ -261,7 +281,7 @@ public class NativeBuffer extends NativeObject {
       if (r < 0) {
         throw new Error("The object has already been deleted.");
       } else if (r == 0) {
-        NativeBufferJNI.free(self);
+        NativeSlabAllocator.free(self, size);
         self = 0;
       }
     }
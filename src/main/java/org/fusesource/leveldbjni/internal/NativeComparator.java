@@ -66,12 +66,19 @@ public abstract class NativeComparator extends NativeObject {
 
         @Override
         public int compare(byte[] key1, byte[] key2) {
-          throw new UnsupportedOperationException();
+          int length = Math.min(key1.length, key2.length);
+          for (int i = 0; i < length; i++) {
+            int diff = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+            if (diff != 0) {
+              return diff;
+            }
+          }
+          return key1.length - key2.length;
         }
 
         @Override
         public String name() {
-          throw new UnsupportedOperationException();
+          return "leveldb.BytewiseComparator";
         }
       };
   private NativeBuffer name_buffer;
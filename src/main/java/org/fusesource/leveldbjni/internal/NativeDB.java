@@ -43,10 +43,17 @@ import static org.fusesource.hawtjni.runtime.MethodFlag.POINTER_RETURN;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import org.fusesource.hawtjni.runtime.JniArg;
 import org.fusesource.hawtjni.runtime.JniClass;
 import org.fusesource.hawtjni.runtime.JniMethod;
 import org.fusesource.hawtjni.runtime.Library;
+import org.fusesource.hawtjni.runtime.PointerMath;
 
 /**
  * The DB object provides the main interface to acessing LevelDB.
@@ -57,18 +64,31 @@ public class NativeDB extends NativeObject {
 
   public static final Library LIBRARY = new Library("leveldbjni", NativeDB.class);
 
-  private NativeDB(long self) {
+  /**
+   * Returned by {@link #get(NativeReadOptions, ByteBuffer, ByteBuffer)} when the key
+   * does not exist.
+   */
+  public static final int NOT_FOUND = -1;
+
+  private final NativeComparator comparator;
+
+  private NativeDB(long self, NativeComparator comparator) {
     super(self);
+    this.comparator = comparator == NativeComparator.BYTEWISE_COMPARATOR ? null : comparator;
   }
 
+  /**
+   * Frees the status and throws if it is not ok.  The ok path does not
+   * allocate and makes no JNI call besides freeing the status.
+   */
   static void checkStatus(long s) throws DBException {
-    NativeStatus status = new NativeStatus(s);
+    int code = NativeStatus.code(s);
     try {
-      if (!status.isOk()) {
-        throw new DBException(status.toString(), status.isNotFound());
+      if (code != NativeStatus.OK) {
+        throw new DBException(NativeStatus.message(s), code);
       }
     } finally {
-      status.delete();
+      NativeStatus.free(s);
     }
   }
 
@@ -90,7 +110,7 @@ public class NativeDB extends NativeObject {
       }
       throw e;
     }
-    return new NativeDB(rc[0]);
+    return new NativeDB(rc[0], options.comparator());
   }
 
   public static  void destroy(File path, NativeOptions options) throws IOException {
@@ -105,6 +125,14 @@ public class NativeDB extends NativeObject {
     checkStatus(DBJNI.RepairDB(path.getCanonicalPath(), options));
   }
 
+  /**
+   * @return the comparator the database was opened with, or null for the
+   *     bytewise comparator.
+   */
+  NativeComparator comparator() {
+    return comparator;
+  }
+
   public void delete() {
     assertAllocated();
     DBJNI.delete(self);
@@ -114,21 +142,36 @@ public class NativeDB extends NativeObject {
   public void delete(NativeWriteOptions options, byte[] key) throws DBException {
     checkArgNotNull(options, "options");
     checkArgNotNull(key, "key");
-    NativeBuffer keyBuffer = NativeBuffer.create(key);
+    NativeArena arena = NativeArena.acquire();
     try {
-      delete(options, keyBuffer);
+      delete(options, arena.copy(key), key.length);
     } finally {
-      keyBuffer.delete();
+      arena.release();
     }
   }
 
-  private void delete(NativeWriteOptions options, NativeBuffer keyBuffer) throws DBException {
-    delete(options, new NativeSlice(keyBuffer));
+  /**
+   * Deletes the remaining bytes of the key buffer.  Direct buffers are passed to
+   * leveldb in place, heap buffers are copied.  On return the key buffer's position
+   * is at its limit.
+   */
+  public void delete(NativeWriteOptions options, ByteBuffer key) throws DBException {
+    checkArgNotNull(options, "options");
+    checkArgNotNull(key, "key");
+    NativeBuffer keyBuffer = NativeMemory.isAddressable(key) ? null : NativeBuffer.create(key);
+    try {
+      delete(options, pointer(key, keyBuffer), key.remaining());
+    } finally {
+      if (keyBuffer != null) {
+        keyBuffer.delete();
+      }
+    }
+    key.position(key.limit());
   }
 
-  private void delete(NativeWriteOptions options, NativeSlice keySlice) throws DBException {
+  void delete(NativeWriteOptions options, long key, long keyLength) throws DBException {
     assertAllocated();
-    checkStatus(DBJNI.Delete(self, options, keySlice));
+    checkStatus(DBJNI.Delete(self, options, NativeSlice.argument(0, key, keyLength)));
   }
 
   /*public void suspendCompactions() {
@@ -143,28 +186,51 @@ public class NativeDB extends NativeObject {
     checkArgNotNull(options, "options");
     checkArgNotNull(key, "key");
     checkArgNotNull(value, "value");
-    NativeBuffer keyBuffer = NativeBuffer.create(key);
+    NativeArena arena = NativeArena.acquire();
     try {
-      NativeBuffer valueBuffer = NativeBuffer.create(value);
-      try {
-        put(options, keyBuffer, valueBuffer);
-      } finally {
-        valueBuffer.delete();
-      }
+      long data = arena.copy(key, value);
+      put(options, data, key.length, PointerMath.add(data, key.length), value.length);
     } finally {
-      keyBuffer.delete();
+      arena.release();
     }
   }
 
-  private void put(NativeWriteOptions options, NativeBuffer keyBuffer, NativeBuffer valueBuffer)
+  /**
+   * Stores the remaining bytes of the value buffer under the remaining bytes of the
+   * key buffer.  Direct buffers are passed to leveldb in place, heap buffers are copied.
+   * On return the position of both buffers is at their limit.
+   */
+  public void put(NativeWriteOptions options, ByteBuffer key, ByteBuffer value)
       throws DBException {
-    put(options, new NativeSlice(keyBuffer), new NativeSlice(valueBuffer));
+    checkArgNotNull(options, "options");
+    checkArgNotNull(key, "key");
+    checkArgNotNull(value, "value");
+    NativeBuffer keyBuffer = NativeMemory.isAddressable(key) ? null : NativeBuffer.create(key);
+    try {
+      NativeBuffer valueBuffer =
+          NativeMemory.isAddressable(value) ? null : NativeBuffer.create(value);
+      try {
+        put(options, pointer(key, keyBuffer), key.remaining(),
+            pointer(value, valueBuffer), value.remaining());
+      } finally {
+        if (valueBuffer != null) {
+          valueBuffer.delete();
+        }
+      }
+    } finally {
+      if (keyBuffer != null) {
+        keyBuffer.delete();
+      }
+    }
+    key.position(key.limit());
+    value.position(value.limit());
   }
 
-  private void put(NativeWriteOptions options, NativeSlice keySlice, NativeSlice valueSlice)
+  void put(NativeWriteOptions options, long key, long keyLength, long value, long valueLength)
       throws DBException {
     assertAllocated();
-    checkStatus(DBJNI.Put(self, options, keySlice, valueSlice));
+    checkStatus(DBJNI.Put(self, options,
+        NativeSlice.argument(0, key, keyLength), NativeSlice.argument(1, value, valueLength)));
   }
 
 
@@ -177,35 +243,173 @@ public class NativeDB extends NativeObject {
   public byte[] get(NativeReadOptions options, byte[] key) throws DBException {
     checkArgNotNull(options, "options");
     checkArgNotNull(key, "key");
-    NativeBuffer keyBuffer = NativeBuffer.create(key);
+    NativeArena arena = NativeArena.acquire();
     try {
-      return get(options, keyBuffer);
+      return get(options, arena.copy(key), key.length);
     } finally {
-      keyBuffer.delete();
+      arena.release();
     }
   }
 
-  private byte[] get(NativeReadOptions options, NativeBuffer keyBuffer) throws DBException {
-    return get(options, new NativeSlice(keyBuffer));
+  /**
+   * Looks up the remaining bytes of the key buffer and copies as much of the value
+   * as fits into the remaining space of the value buffer, starting at its position.
+   * The value buffer's limit is then set to the end of the copied bytes, so a
+   * result larger than the buffer can be detected by comparing the returned length
+   * with {@code value.remaining()}.  On return the key buffer's position is at its limit.
+   *
+   * @return the full length of the stored value, or {@link #NOT_FOUND}
+   */
+  public int get(NativeReadOptions options, ByteBuffer key, ByteBuffer value)
+      throws DBException {
+    checkArgNotNull(options, "options");
+    checkArgNotNull(key, "key");
+    checkArgNotNull(value, "value");
+    if (value.isReadOnly()) {
+      throw new IllegalArgumentException("The value argument cannot be read-only");
+    }
+    NativeBuffer keyBuffer = NativeMemory.isAddressable(key) ? null : NativeBuffer.create(key);
+    int rc;
+    try {
+      rc = get(options, pointer(key, keyBuffer), key.remaining(), value);
+    } finally {
+      if (keyBuffer != null) {
+        keyBuffer.delete();
+      }
+    }
+    key.position(key.limit());
+    return rc;
   }
 
-  private byte[] get(NativeReadOptions options, NativeSlice keySlice) throws DBException {
+  int get(NativeReadOptions options, long key, long keyLength, ByteBuffer value)
+      throws DBException {
     assertAllocated();
     NativeStdString result = new NativeStdString();
     try {
-      long s = DBJNI.Get(self, options, keySlice, result.pointer());
-      NativeStatus status = new NativeStatus(s);
+      long s = DBJNI.Get(self, options, NativeSlice.argument(0, key, keyLength),
+          result.pointer());
+      int code = NativeStatus.code(s);
       try {
-        if (status.isOk()) {
-          return result.toByteArray();
+        if (code == NativeStatus.NOT_FOUND) {
+          return NOT_FOUND;
+        }
+        if (code != NativeStatus.OK) {
+          throw new DBException(NativeStatus.message(s), code);
         }
-        if (status.isNotFound()) {
-          return null;
+      } finally {
+        NativeStatus.free(s);
+      }
+      long length = result.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new ArrayIndexOutOfBoundsException(
+            "Native string is larger than the maximum Java buffer");
+      }
+      int copied = (int) Math.min(length, value.remaining());
+      NativeSlice.copy(result.data(), value, copied);
+      value.limit(value.position() + copied);
+      return (int) length;
+    } finally {
+      result.delete();
+    }
+  }
+
+  /**
+   * Looks up several keys against one consistent view of the database.
+   * When the options carry no snapshot, an implicit one is taken for the duration
+   * of the call.  All keys are packed into a single native buffer and looked up in
+   * bytewise key order so that neighbouring keys hit the same cached blocks.
+   *
+   * @return the values in the order of the given keys, null for keys which do not exist
+   */
+  public List<byte[]> multiGet(NativeReadOptions options, List<byte[]> keys)
+      throws DBException {
+    checkArgNotNull(options, "options");
+    checkArgNotNull(keys, "keys");
+    assertAllocated();
+    final byte[][] keyArray = keys.toArray(new byte[keys.size()][]);
+    byte[][] values = new byte[keyArray.length][];
+    if (keyArray.length == 0) {
+      return new ArrayList<byte[]>(0);
+    }
+    Integer[] order = new Integer[keyArray.length];
+    int[] offsets = new int[keyArray.length + 1];
+    for (int i = 0; i < keyArray.length; i++) {
+      checkArgNotNull(keyArray[i], "key");
+      order[i] = i;
+      offsets[i + 1] = offsets[i] + keyArray[i].length;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        return NativeComparator.BYTEWISE_COMPARATOR.compare(keyArray[o1], keyArray[o2]);
+      }
+    });
+
+    byte[] packed = new byte[offsets[keyArray.length]];
+    for (int i = 0; i < keyArray.length; i++) {
+      System.arraycopy(keyArray[i], 0, packed, offsets[i], keyArray[i].length);
+    }
+    NativeSnapshot snapshot = null;
+    NativeReadOptions view = options;
+    if (options.snapshot() == null) {
+      snapshot = getSnapshot();
+      view = new NativeReadOptions()
+          .fillCache(options.fillCache())
+          .verifyChecksums(options.verifyChecksums())
+          .snapshot(snapshot);
+    }
+    try {
+      NativeArena arena = NativeArena.acquire();
+      try {
+        long keyBuffer = arena.copy(packed);
+        NativeStdString result = new NativeStdString();
+        try {
+          for (Integer i : order) {
+            values[i] = get(view, PointerMath.add(keyBuffer, offsets[i]),
+                keyArray[i].length, result);
+          }
+        } finally {
+          result.delete();
         }
-        throw new DBException(status.toString(), status.isNotFound());
       } finally {
-        status.delete();
+        arena.release();
+      }
+    } finally {
+      if (snapshot != null) {
+        releaseSnapshot(snapshot);
+      }
+    }
+    List<byte[]> rc = new ArrayList<byte[]>(values.length);
+    Collections.addAll(rc, values);
+    return rc;
+  }
+
+  private byte[] get(NativeReadOptions options, long key, long keyLength,
+                     NativeStdString result) throws DBException {
+    long s = DBJNI.Get(self, options, NativeSlice.argument(0, key, keyLength),
+        result.pointer());
+    int code = NativeStatus.code(s);
+    try {
+      if (code == NativeStatus.OK) {
+        return result.toByteArray();
+      }
+      if (code == NativeStatus.NOT_FOUND) {
+        return null;
       }
+      throw new DBException(NativeStatus.message(s), code);
+    } finally {
+      NativeStatus.free(s);
+    }
+  }
+
+  private static long pointer(ByteBuffer buffer, NativeBuffer copy) {
+    return copy == null ? NativeMemory.address(buffer) : copy.pointer();
+  }
+
+  byte[] get(NativeReadOptions options, long key, long keyLength) throws DBException {
+    assertAllocated();
+    NativeStdString result = new NativeStdString();
+    try {
+      return get(options, key, keyLength, result);
     } finally {
       result.delete();
     }
@@ -222,7 +426,12 @@ public class NativeDB extends NativeObject {
 
   public NativeIterator iterator(NativeReadOptions options) {
     checkArgNotNull(options, "options");
-    return new NativeIterator(DBJNI.NewIterator(self, options));
+    return new NativeIterator(this, options);
+  }
+
+  long newIterator(NativeReadOptions options) {
+    assertAllocated();
+    return DBJNI.NewIterator(self, options);
   }
 
   public long[] getApproximateSizes(NativeRange... ranges) {
@@ -431,15 +640,30 @@ public class NativeDB extends NativeObject {
   }
 
   public static class DBException extends IOException {
-    private final boolean notFound;
+    private final int code;
 
-    DBException(String s, boolean notFound) {
+    DBException(String s, int code) {
       super(s);
-      this.notFound = notFound;
+      this.code = code;
+    }
+
+    /**
+     * @return the leveldb::Status::Code of the failure
+     */
+    public int code() {
+      return code;
     }
 
     public boolean isNotFound() {
-      return notFound;
+      return code == NativeStatus.NOT_FOUND;
+    }
+
+    public boolean isCorruption() {
+      return code == NativeStatus.CORRUPTION;
+    }
+
+    public boolean isIOError() {
+      return code == NativeStatus.IO_ERROR;
     }
   }
 }
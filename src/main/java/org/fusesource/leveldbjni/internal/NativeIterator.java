@@ -38,6 +38,8 @@ import static org.fusesource.hawtjni.runtime.ClassFlag.CPP;
 import static org.fusesource.hawtjni.runtime.MethodFlag.CPP_DELETE;
 import static org.fusesource.hawtjni.runtime.MethodFlag.CPP_METHOD;
 
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 import org.fusesource.hawtjni.runtime.JniArg;
 import org.fusesource.hawtjni.runtime.JniClass;
 import org.fusesource.hawtjni.runtime.JniMethod;
@@ -49,8 +51,27 @@ import org.fusesource.hawtjni.runtime.JniMethod;
  */
 public class NativeIterator extends NativeObject {
 
-  NativeIterator(long self) {
-    super(self);
+  private byte[] lowerBound;
+  private byte[] upperBound;
+  private byte[] prefix;
+  private final NativeDB db;
+  private final NativeReadOptions options;
+  private final NativeComparator comparator;
+  private long created;
+  private boolean checked;
+  private boolean inBounds;
+  private ScanFilter filter;
+  private Candidate candidate;
+
+  NativeIterator(NativeDB db, NativeReadOptions options) {
+    super(db.newIterator(options));
+    this.db = db;
+    this.options = new NativeReadOptions()
+        .fillCache(options.fillCache())
+        .verifyChecksums(options.verifyChecksums())
+        .snapshot(options.snapshot());
+    this.comparator = db.comparator();
+    this.created = System.nanoTime();
   }
 
   public void delete() {
@@ -59,9 +80,114 @@ public class NativeIterator extends NativeObject {
     self = 0;
   }
 
+  /**
+   * Moves the iterator onto the latest state of the database, unless its read
+   * options pin a snapshot, and repositions it at the key it was at.  When that
+   * key has been deleted meanwhile, the iterator lands on the key after it.
+   * leveldb iterators cannot be moved to a newer sequence in place, so the
+   * native iterator is replaced, keeping the bounds and filter.
+   */
+  public void refresh() throws NativeDB.DBException {
+    assertAllocated();
+    byte[] key = IteratorJNI.Valid(self) ? key() : null;
+    long fresh = db.newIterator(options);
+    if (fresh == 0) {
+      throw new OutOfMemoryError("Failure allocating native heap memory");
+    }
+    IteratorJNI.delete(self);
+    self = fresh;
+    created = System.nanoTime();
+    checked = false;
+    if (key != null) {
+      seek(key);
+    }
+  }
+
+  /**
+   * @return the time, in {@link System#nanoTime()} units, the native iterator
+   *     was created at
+   */
+  long created() {
+    return created;
+  }
+
+  /**
+   * Restricts the iterator to the keys at or past lowerBound and before
+   * upperBound.  Either bound may be null.  Once a movement leaves the range the
+   * iterator is no longer valid, and seeking to the first or last entry lands on
+   * the first or last entry in the range.  The bounds are compared using the
+   * comparator of the database.
+   */
+  public NativeIterator bounds(byte[] lowerBound, byte[] upperBound) {
+    this.lowerBound = lowerBound == null ? null : lowerBound.clone();
+    this.upperBound = upperBound == null ? null : upperBound.clone();
+    this.prefix = null;
+    this.checked = false;
+    return this;
+  }
+
+  /**
+   * Restricts the iterator to the keys starting with the given prefix.  The keys
+   * sharing the prefix must be contiguous in the database order and sort at or
+   * past the prefix itself, which holds for the bytewise comparator.
+   */
+  public NativeIterator prefix(byte[] prefix) {
+    NativeDB.checkArgNotNull(prefix, "prefix");
+    bounds(prefix, successor(prefix));
+    this.prefix = prefix.clone();
+    return this;
+  }
+
+  /**
+   * Skips the entries which do not match the filter, or none when it is null.
+   * The filter is evaluated in place against the key and value held by leveldb,
+   * and applies from the next movement of the iterator on.
+   */
+  public NativeIterator filter(ScanFilter filter) {
+    this.filter = filter;
+    if (filter != null && candidate == null) {
+      candidate = new Candidate();
+    }
+    return this;
+  }
+
+  /**
+   * @return the shortest key sorting after every bytewise key with the given
+   *     prefix, or null if there is none.
+   */
+  static byte[] successor(byte[] prefix) {
+    for (int i = prefix.length - 1; i >= 0; i--) {
+      if (prefix[i] != (byte) 0xFF) {
+        byte[] rc = Arrays.copyOf(prefix, i + 1);
+        rc[i]++;
+        return rc;
+      }
+    }
+    return null;
+  }
+
+  private boolean isBounded() {
+    return lowerBound != null || upperBound != null;
+  }
+
   public boolean isValid() {
     assertAllocated();
-    return IteratorJNI.Valid(self);
+    if (!IteratorJNI.Valid(self)) {
+      return false;
+    }
+    if (!isBounded()) {
+      return true;
+    }
+    if (!checked) {
+      long slice_ptr = IteratorJNI.key(self);
+      try {
+        inBounds = inBounds(slice_ptr);
+      } finally {
+        NativeSlice.SliceJNI.delete(slice_ptr);
+      }
+      checked = true;
+    }
+    return inBounds;
   }
 
   private void checkStatus() throws NativeDB.DBException {
@@ -70,72 +196,485 @@ public class NativeIterator extends NativeObject {
 
   public void seekToFirst() {
     assertAllocated();
-    IteratorJNI.SeekToFirst(self);
+    checked = false;
+    if (lowerBound != null) {
+      seekUnchecked(lowerBound);
+    } else {
+      IteratorJNI.SeekToFirst(self);
+    }
+    skip(true);
   }
 
   public void seekToLast() {
     assertAllocated();
-    IteratorJNI.SeekToLast(self);
+    checked = false;
+    if (upperBound != null) {
+      seekUnchecked(upperBound);
+      if (IteratorJNI.Valid(self)) {
+        IteratorJNI.Prev(self);
+      } else {
+        IteratorJNI.SeekToLast(self);
+      }
+    } else {
+      IteratorJNI.SeekToLast(self);
+    }
+    skip(false);
+  }
+
+  private void seekUnchecked(byte[] key) {
+    NativeArena arena = NativeArena.acquire();
+    try {
+      IteratorJNI.Seek(self, NativeSlice.argument(0, arena.copy(key), key.length));
+    } finally {
+      arena.release();
+    }
   }
 
   public void seek(byte[] key) throws NativeDB.DBException {
     NativeDB.checkArgNotNull(key, "key");
-    NativeBuffer keyBuffer = NativeBuffer.create(key);
+    if (lowerBound != null && compare(key, lowerBound) < 0) {
+      key = lowerBound;
+    }
+    NativeArena arena = NativeArena.acquire();
     try {
-      seek(keyBuffer);
+      seek(arena.copy(key), key.length);
     } finally {
-      keyBuffer.delete();
+      arena.release();
     }
   }
 
-  private void seek(NativeBuffer keyBuffer) throws NativeDB.DBException {
-    seek(new NativeSlice(keyBuffer));
+  void seek(long key, long keyLength) throws NativeDB.DBException {
+    assertAllocated();
+    checked = false;
+    IteratorJNI.Seek(self, NativeSlice.argument(0, key, keyLength));
+    skip(true);
+    checkStatus();
+  }
+
+  /**
+   * Positions the iterator at the last key at or before the target, comparing
+   * keys with the comparator of the database.
+   *
+   * @return true iff the iterator is valid afterwards
+   */
+  public boolean seekForPrev(byte[] key) throws NativeDB.DBException {
+    NativeDB.checkArgNotNull(key, "key");
+    if (upperBound != null && compare(key, upperBound) >= 0) {
+      seekToLast();
+      checkStatus();
+      return isValid();
+    }
+    NativeArena arena = NativeArena.acquire();
+    try {
+      return seekForPrev(arena.copy(key), key.length, key);
+    } finally {
+      arena.release();
+    }
   }
 
-  private void seek(NativeSlice keySlice) throws NativeDB.DBException {
+  private boolean seekForPrev(long key, long keyLength, byte[] target) throws NativeDB.DBException {
     assertAllocated();
-    IteratorJNI.Seek(self, keySlice);
+    checked = false;
+    IteratorJNI.Seek(self, NativeSlice.argument(0, key, keyLength));
+    if (!IteratorJNI.Valid(self)) {
+      IteratorJNI.SeekToLast(self);
+    } else {
+      long slice_ptr = IteratorJNI.key(self);
+      int cmp;
+      try {
+        cmp = compare(NativeSlice.dataAt(slice_ptr), NativeSlice.sizeAt(slice_ptr), target);
+      } finally {
+        NativeSlice.SliceJNI.delete(slice_ptr);
+      }
+      if (cmp > 0) {
+        IteratorJNI.Prev(self);
+      }
+    }
+    skip(false);
     checkStatus();
+    return isValid();
   }
 
   public void next() throws NativeDB.DBException {
     assertAllocated();
+    checked = false;
     IteratorJNI.Next(self);
+    skip(true);
     checkStatus();
   }
 
   public void prev() throws NativeDB.DBException {
     assertAllocated();
+    checked = false;
     IteratorJNI.Prev(self);
+    skip(false);
     checkStatus();
   }
 
+  /**
+   * Moves on in the given direction until the iterator is at an entry which
+   * matches the filter, or leaves its bounds.
+   */
+  private void skip(boolean forward) {
+    if (filter == null) {
+      return;
+    }
+    while (IteratorJNI.Valid(self)) {
+      long slice_ptr = IteratorJNI.key(self);
+      try {
+        if (isBounded()) {
+          inBounds = inBounds(slice_ptr);
+          checked = true;
+          if (!inBounds) {
+            return;
+          }
+        }
+        if (candidate.matches(slice_ptr)) {
+          return;
+        }
+      } finally {
+        candidate.release();
+        NativeSlice.SliceJNI.delete(slice_ptr);
+      }
+      checked = false;
+      if (forward) {
+        IteratorJNI.Next(self);
+      } else {
+        IteratorJNI.Prev(self);
+      }
+    }
+  }
+
+  private boolean inBounds(long slice_ptr) {
+    long data = NativeSlice.dataAt(slice_ptr);
+    long size = NativeSlice.sizeAt(slice_ptr);
+    if (prefix != null) {
+      return size >= prefix.length && compare(data, prefix.length, prefix) == 0;
+    }
+    return (lowerBound == null || compare(data, size, lowerBound) >= 0)
+        && (upperBound == null || compare(data, size, upperBound) < 0);
+  }
+
+  /**
+   * Compares a key held in native memory with a java one, in place when the
+   * database uses the bytewise comparator.
+   */
+  private int compare(long data, long size, byte[] other) {
+    if (comparator == null && NativeMemory.AVAILABLE) {
+      long length = Math.min(size, other.length);
+      for (int i = 0; i < length; i++) {
+        int diff = (NativeMemory.getByte(data + i) & 0xFF) - (other[i] & 0xFF);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return Long.signum(size - other.length);
+    }
+    byte[] key = new byte[(int) size];
+    NativeSlice.copy(data, key, 0, key.length);
+    return compare(key, other);
+  }
+
+  private int compare(byte[] key, byte[] other) {
+    NativeComparator rc = comparator == null ? NativeComparator.BYTEWISE_COMPARATOR : comparator;
+    return rc.compare(key, other);
+  }
+
   public byte[] key() throws NativeDB.DBException {
     assertAllocated();
     long slice_ptr = IteratorJNI.key(self);
     checkStatus();
+    return toByteArray(slice_ptr);
+  }
+
+  public byte[] value() throws NativeDB.DBException {
+    assertAllocated();
+    long slice_ptr = IteratorJNI.value(self);
+    checkStatus();
+    return toByteArray(slice_ptr);
+  }
+
+  /**
+   * @return a heap copy of the current key's leveldb::Slice, which the caller
+   *     must delete.  It points into the iterator and is valid until it moves.
+   */
+  long keySlice() throws NativeDB.DBException {
+    assertAllocated();
+    return checked(IteratorJNI.key(self));
+  }
+
+  /**
+   * @see #keySlice()
+   */
+  long valueSlice() throws NativeDB.DBException {
+    assertAllocated();
+    return checked(IteratorJNI.value(self));
+  }
+
+  private long checked(long slice_ptr) throws NativeDB.DBException {
+    try {
+      checkStatus();
+    } catch (NativeDB.DBException e) {
+      NativeSlice.SliceJNI.delete(slice_ptr);
+      throw e;
+    }
+    return slice_ptr;
+  }
+
+  /**
+   * @return the length of the current value, read without copying the value
+   */
+  public long valueSize() throws NativeDB.DBException {
+    assertAllocated();
+    long slice_ptr = IteratorJNI.value(self);
+    checkStatus();
     try {
-      NativeSlice slice = new NativeSlice();
-      slice.read(slice_ptr, 0);
-      return slice.toByteArray();
+      return NativeSlice.sizeAt(slice_ptr);
     } finally {
       NativeSlice.SliceJNI.delete(slice_ptr);
     }
   }
 
-  public byte[] value() throws NativeDB.DBException {
+  /**
+   * Copies up to maxEntries entries, stopping early once maxBytes of keys and
+   * values have been copied, into the batch and moves the iterator past them.
+   * At least one entry is copied while the iterator is valid.  The iterator
+   * status is only checked once for the whole batch, and the bounds and filter
+   * are checked against each entry in place before it is copied.
+   *
+   * @return the number of entries copied
+   */
+  int fill(Batch batch, int maxEntries, long maxBytes) throws NativeDB.DBException {
     assertAllocated();
-    long slice_ptr = IteratorJNI.value(self);
+    batch.clear();
+    while (batch.count() < maxEntries && batch.length() < maxBytes && IteratorJNI.Valid(self)) {
+      long slice_ptr = IteratorJNI.key(self);
+      if (isBounded() && !inBounds(slice_ptr)) {
+        NativeSlice.SliceJNI.delete(slice_ptr);
+        checked = true;
+        inBounds = false;
+        break;
+      }
+      checked = false;
+      if (filter != null && !candidate.matches(slice_ptr)) {
+        candidate.release();
+        NativeSlice.SliceJNI.delete(slice_ptr);
+        IteratorJNI.Next(self);
+        continue;
+      }
+      batch.append(slice_ptr);
+      long value_ptr = filter == null ? 0 : candidate.takeValue();
+      batch.append(value_ptr != 0 ? value_ptr : IteratorJNI.value(self));
+      IteratorJNI.Next(self);
+    }
+    checkStatus();
+    return batch.count();
+  }
+
+  /**
+   * Walks from the current entry to the end of the bounds without copying any
+   * key or value, stopping after maxEntries entries.  Filtered out entries are
+   * not counted.
+   *
+   * @param sizes whether the key and value lengths should be summed up
+   * @return the number of entries walked and the sum of their key and value lengths
+   */
+  long[] aggregate(long maxEntries, boolean sizes) throws NativeDB.DBException {
+    assertAllocated();
+    long count = 0;
+    long bytes = 0;
+    boolean readKey = sizes || isBounded() || filter != null;
+    while (count < maxEntries && IteratorJNI.Valid(self)) {
+      if (readKey) {
+        long slice_ptr = IteratorJNI.key(self);
+        long value_ptr = 0;
+        try {
+          if (isBounded() && !inBounds(slice_ptr)) {
+            checked = true;
+            inBounds = false;
+            break;
+          }
+          if (filter != null) {
+            boolean matches = candidate.matches(slice_ptr);
+            value_ptr = candidate.takeValue();
+            if (!matches) {
+              checked = false;
+              IteratorJNI.Next(self);
+              continue;
+            }
+          }
+          if (sizes) {
+            if (value_ptr == 0) {
+              value_ptr = IteratorJNI.value(self);
+            }
+            bytes += NativeSlice.sizeAt(slice_ptr) + NativeSlice.sizeAt(value_ptr);
+          }
+        } finally {
+          if (value_ptr != 0) {
+            NativeSlice.SliceJNI.delete(value_ptr);
+          }
+          NativeSlice.SliceJNI.delete(slice_ptr);
+        }
+      }
+      count++;
+      checked = false;
+      IteratorJNI.Next(self);
+    }
     checkStatus();
+    return new long[] {count, bytes};
+  }
+
+  private static byte[] toByteArray(long slice_ptr) {
     try {
-      NativeSlice slice = new NativeSlice();
-      slice.read(slice_ptr, 0);
-      return slice.toByteArray();
+      byte[] rc = new byte[(int) NativeSlice.sizeAt(slice_ptr)];
+      NativeSlice.copy(NativeSlice.dataAt(slice_ptr), rc, 0, rc.length);
+      return rc;
     } finally {
       NativeSlice.SliceJNI.delete(slice_ptr);
     }
   }
 
+  /**
+   * The current entry, as seen by the filter.  The value slice is only fetched
+   * when the filter asks for it.
+   */
+  private final class Candidate implements ScanFilter.Entry {
+    private final ScanFilter.Region key = new ScanFilter.Region();
+    private final ScanFilter.Region value = new ScanFilter.Region();
+    private long valueSlice;
+
+    public ScanFilter.Region key() {
+      return key;
+    }
+
+    public ScanFilter.Region value() {
+      if (valueSlice == 0) {
+        valueSlice = IteratorJNI.value(self);
+        value.set(valueSlice);
+      }
+      return value;
+    }
+
+    boolean matches(long keySlice) {
+      key.set(keySlice);
+      return filter.matches(this);
+    }
+
+    /**
+     * @return the value slice fetched by the filter, which the caller now owns, or 0
+     */
+    long takeValue() {
+      long rc = valueSlice;
+      valueSlice = 0;
+      return rc;
+    }
+
+    void release() {
+      if (valueSlice != 0) {
+        NativeSlice.SliceJNI.delete(valueSlice);
+        valueSlice = 0;
+      }
+    }
+  }
+
+  /**
+   * A reusable heap buffer holding a run of entries copied out of an iterator.
+   * Keys and values are packed back to back; the key of entry i spans
+   * offsets[2i] to offsets[2i + 1] and its value runs on to offsets[2i + 2].
+   */
+  static final class Batch {
+    private byte[] data = new byte[1024];
+    private int[] offsets = new int[65];
+    private int length;
+    private int slices;
+    private int position;
+
+    void clear() {
+      length = 0;
+      slices = 0;
+      position = 0;
+    }
+
+    /**
+     * @return the number of entries in the batch
+     */
+    int count() {
+      return slices >> 1;
+    }
+
+    /**
+     * @return the number of key and value bytes in the batch
+     */
+    int length() {
+      return length;
+    }
+
+    /**
+     * @return true if the batch is positioned at an entry
+     */
+    boolean isValid() {
+      return position < count();
+    }
+
+    void next() {
+      position++;
+    }
+
+    byte[] data() {
+      return data;
+    }
+
+    /**
+     * @return where the key (even slices) or value (odd slices) of an entry starts
+     */
+    int offset(int slice) {
+      return offsets[slice];
+    }
+
+    byte[] key() {
+      return copy(2 * position);
+    }
+
+    byte[] value() {
+      return copy(2 * position + 1);
+    }
+
+    int valueSize() {
+      if (!isValid()) {
+        throw new NoSuchElementException();
+      }
+      return offsets[2 * position + 2] - offsets[2 * position + 1];
+    }
+
+    private byte[] copy(int slice) {
+      if (!isValid()) {
+        throw new NoSuchElementException();
+      }
+      return Arrays.copyOfRange(data, offsets[slice], offsets[slice + 1]);
+    }
+
+    private void append(long slice_ptr) {
+      try {
+        long size = NativeSlice.sizeAt(slice_ptr);
+        if (length + size > Integer.MAX_VALUE - 8) {
+          throw new OutOfMemoryError("Iterator batch exceeds the maximum array size");
+        }
+        int end = length + (int) size;
+        if (end > data.length) {
+          data = Arrays.copyOf(data, (int) Math.max(end, Math.min(2L * data.length, Integer.MAX_VALUE - 8)));
+        }
+        if (slices + 2 > offsets.length) {
+          offsets = Arrays.copyOf(offsets, 2 * offsets.length - 1);
+        }
+        NativeSlice.copy(NativeSlice.dataAt(slice_ptr), data, length, (int) size);
+        offsets[++slices] = end;
+        length = end;
+      } finally {
+        NativeSlice.SliceJNI.delete(slice_ptr);
+      }
+    }
+  }
+
   @JniClass(name = "leveldb::Iterator", flags = {CPP})
   private static class IteratorJNI {
     static {
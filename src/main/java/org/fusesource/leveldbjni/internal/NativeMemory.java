@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Direct access to native memory from the java side, used to avoid
+ * JNI round trips where only a pointer or a plain copy is needed.
+ *
+ * <p>{@code sun.misc.Unsafe} is only reached reflectively, so that the code
+ * compiles without depending on it.  When the JVM does not expose it,
+ * {@link #AVAILABLE} is false and callers fall back to the hawtjni
+ * bindings.</p>
+ */
+final class NativeMemory {
+
+  static final boolean AVAILABLE;
+  static final int ADDRESS_SIZE;
+  private static final MethodHandle GET_LONG;
+  private static final MethodHandle GET_ADDRESS;
+  private static final MethodHandle GET_BYTE;
+  private static final MethodHandle COPY_MEMORY;
+  private static final MethodHandle COPY_OBJECT_MEMORY;
+  private static final long BUFFER_ADDRESS_OFFSET;
+  private static final long BYTE_ARRAY_OFFSET;
+
+  static {
+    MethodHandle getLong = null;
+    MethodHandle getAddress = null;
+    MethodHandle getByte = null;
+    MethodHandle copyMemory = null;
+    MethodHandle copyObjectMemory = null;
+    long addressOffset = -1;
+    long arrayOffset = 0;
+    int addressSize = 0;
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      addressOffset = (Long) type.getMethod("objectFieldOffset", Field.class)
+          .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+      arrayOffset = (Integer) type.getMethod("arrayBaseOffset", Class.class)
+          .invoke(unsafe, byte[].class);
+      addressSize = (Integer) type.getMethod("addressSize").invoke(unsafe);
+      getLong = lookup.findVirtual(type, "getLong",
+          MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+      getAddress = lookup.findVirtual(type, "getAddress",
+          MethodType.methodType(long.class, long.class)).bindTo(unsafe);
+      getByte = lookup.findVirtual(type, "getByte",
+          MethodType.methodType(byte.class, long.class)).bindTo(unsafe);
+      copyMemory = lookup.findVirtual(type, "copyMemory",
+          MethodType.methodType(void.class, long.class, long.class, long.class)).bindTo(unsafe);
+      copyObjectMemory = lookup.findVirtual(type, "copyMemory",
+          MethodType.methodType(void.class, Object.class, long.class, Object.class, long.class,
+              long.class)).bindTo(unsafe);
+    } catch (Throwable e) {
+      copyObjectMemory = null;
+    }
+    AVAILABLE = copyObjectMemory != null;
+    GET_LONG = getLong;
+    GET_ADDRESS = getAddress;
+    GET_BYTE = getByte;
+    COPY_MEMORY = copyMemory;
+    COPY_OBJECT_MEMORY = copyObjectMemory;
+    BUFFER_ADDRESS_OFFSET = addressOffset;
+    BYTE_ARRAY_OFFSET = AVAILABLE ? arrayOffset : 0;
+    ADDRESS_SIZE = AVAILABLE ? addressSize : 0;
+  }
+
+  private NativeMemory() {
+  }
+
+  /**
+   * @return true if the contents of the buffer can be handed to native code
+   *     in place, without being copied first.
+   */
+  static boolean isAddressable(ByteBuffer buffer) {
+    return AVAILABLE && buffer.isDirect();
+  }
+
+  /**
+   * @return the address of the element at the buffer's current position.
+   */
+  static long address(ByteBuffer buffer) {
+    if (!isAddressable(buffer)) {
+      throw new IllegalArgumentException("buffer is not a direct buffer");
+    }
+    try {
+      return (long) GET_LONG.invokeExact((Object) buffer, BUFFER_ADDRESS_OFFSET)
+          + buffer.position();
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  /**
+   * Reads a native pointer stored at the given address.
+   */
+  static long getAddress(long address) {
+    try {
+      return (long) GET_ADDRESS.invokeExact(address);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  static byte getByte(long address) {
+    try {
+      return (byte) GET_BYTE.invokeExact(address);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  static void copy(long src, long dest, long length) {
+    try {
+      COPY_MEMORY.invokeExact(src, dest, length);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  static void copy(long src, byte[] dest, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > dest.length) {
+      throw new ArrayIndexOutOfBoundsException(
+          "offset + length exceed the length of the target buffer");
+    }
+    try {
+      COPY_OBJECT_MEMORY.invokeExact((Object) null, src, (Object) dest,
+          BYTE_ARRAY_OFFSET + offset, (long) length);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  static void copy(byte[] src, int offset, long dest, int length) {
+    if (offset < 0 || length < 0 || offset + length > src.length) {
+      throw new ArrayIndexOutOfBoundsException(
+          "offset + length exceed the length of the source buffer");
+    }
+    try {
+      COPY_OBJECT_MEMORY.invokeExact((Object) src, BYTE_ARRAY_OFFSET + offset, (Object) null,
+          dest, (long) length);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  private static RuntimeException rethrow(Throwable e) {
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    return new RuntimeException(e);
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A size-class allocator for the native memory behind {@link NativeBuffer}.
+ *
+ * <p>Requests up to {@link #MAX_SLAB_SIZE} bytes are rounded up to a power of two
+ * and served from a per-class free list.  The free lists are shared by all threads
+ * and lock free, so a buffer may be created on one thread and deleted on another.
+ * Freed blocks are kept for reuse until {@link #maxRetained()} bytes are retained,
+ * after which they are returned to the system.  Larger requests always go straight
+ * to malloc.</p>
+ *
+ * <p>The retention cap defaults to 16 MB and can be set with the
+ * {@code leveldbjni.slab.maxRetained} system property or {@link #maxRetained(long)}.</p>
+ */
+public final class NativeSlabAllocator {
+
+  public static final int MIN_SLAB_SIZE = 16;
+  public static final int MAX_SLAB_SIZE = 64 * 1024;
+  private static final int SLOTS_PER_CLASS = 128;
+
+  private static final SizeClass[] CLASSES;
+  private static final AtomicLong RETAINED = new AtomicLong();
+  private static volatile long maxRetained =
+      Long.getLong("leveldbjni.slab.maxRetained", 16 * 1024 * 1024);
+
+  static {
+    List<SizeClass> classes = new ArrayList<SizeClass>();
+    for (int size = MIN_SLAB_SIZE; size <= MAX_SLAB_SIZE; size <<= 1) {
+      classes.add(new SizeClass(size));
+    }
+    CLASSES = classes.toArray(new SizeClass[classes.size()]);
+  }
+
+  private NativeSlabAllocator() {
+  }
+
+  /**
+   * @return the maximum number of bytes kept in the free lists
+   */
+  public static long maxRetained() {
+    return maxRetained;
+  }
+
+  /**
+   * Sets the maximum number of bytes kept in the free lists.  Lowering the cap
+   * does not release blocks which are already retained.
+   */
+  public static void maxRetained(long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("bytes cannot be negative");
+    }
+    maxRetained = bytes;
+  }
+
+  /**
+   * @return the number of bytes currently kept in the free lists
+   */
+  public static long retained() {
+    return RETAINED.get();
+  }
+
+  /**
+   * @return the occupancy of every size class
+   */
+  public static List<Occupancy> occupancy() {
+    List<Occupancy> rc = new ArrayList<Occupancy>(CLASSES.length);
+    for (SizeClass sizeClass : CLASSES) {
+      rc.add(new Occupancy(sizeClass.size, sizeClass.inUse.get(), sizeClass.free.get()));
+    }
+    return Collections.unmodifiableList(rc);
+  }
+
+  /**
+   * Returns every retained block to the system.
+   */
+  public static void trim() {
+    for (SizeClass sizeClass : CLASSES) {
+      long block;
+      while ((block = sizeClass.pop()) != 0) {
+        NativeBuffer.NativeBufferJNI.free(block);
+      }
+    }
+  }
+
+  static long allocate(long size) {
+    SizeClass sizeClass = sizeClass(size);
+    if (sizeClass == null) {
+      return NativeBuffer.NativeBufferJNI.malloc(size);
+    }
+    long rc = sizeClass.pop();
+    if (rc == 0) {
+      rc = NativeBuffer.NativeBufferJNI.malloc(sizeClass.size);
+    }
+    if (rc != 0) {
+      sizeClass.inUse.incrementAndGet();
+    }
+    return rc;
+  }
+
+  static void free(long block, long size) {
+    SizeClass sizeClass = sizeClass(size);
+    if (sizeClass == null) {
+      NativeBuffer.NativeBufferJNI.free(block);
+      return;
+    }
+    sizeClass.inUse.decrementAndGet();
+    if (!sizeClass.push(block)) {
+      NativeBuffer.NativeBufferJNI.free(block);
+    }
+  }
+
+  private static SizeClass sizeClass(long size) {
+    if (size > MAX_SLAB_SIZE) {
+      return null;
+    }
+    int index = 0;
+    for (long classSize = MIN_SLAB_SIZE; classSize < size; classSize <<= 1) {
+      index++;
+    }
+    return CLASSES[index];
+  }
+
+  /**
+   * The number of blocks handed out and kept free for one size class.
+   */
+  public static final class Occupancy {
+    private final int size;
+    private final int inUse;
+    private final int free;
+
+    Occupancy(int size, int inUse, int free) {
+      this.size = size;
+      this.inUse = inUse;
+      this.free = free;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int inUse() {
+      return inUse;
+    }
+
+    public int free() {
+      return free;
+    }
+
+    @Override
+    public String toString() {
+      return size + "B: " + inUse + " in use, " + free + " free";
+    }
+  }
+
+  /**
+   * A free list made of a fixed array of slots.  A block is claimed by swapping
+   * its slot to zero, so a block can never be handed out twice, and neither push
+   * nor pop allocates.
+   */
+  private static final class SizeClass {
+    final int size;
+    final AtomicLongArray slots = new AtomicLongArray(SLOTS_PER_CLASS);
+    final AtomicInteger free = new AtomicInteger();
+    final AtomicInteger inUse = new AtomicInteger();
+
+    SizeClass(int size) {
+      this.size = size;
+    }
+
+    long pop() {
+      if (free.get() == 0) {
+        return 0;
+      }
+      int start = start();
+      for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+        int slot = (start + i) & (SLOTS_PER_CLASS - 1);
+        long block = slots.get(slot);
+        if (block != 0 && slots.compareAndSet(slot, block, 0)) {
+          free.decrementAndGet();
+          RETAINED.addAndGet(-size);
+          return block;
+        }
+      }
+      return 0;
+    }
+
+    boolean push(long block) {
+      if (RETAINED.addAndGet(size) > maxRetained) {
+        RETAINED.addAndGet(-size);
+        return false;
+      }
+      int start = start();
+      for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+        int slot = (start + i) & (SLOTS_PER_CLASS - 1);
+        if (slots.get(slot) == 0 && slots.compareAndSet(slot, 0, block)) {
+          free.incrementAndGet();
+          return true;
+        }
+      }
+      RETAINED.addAndGet(-size);
+      return false;
+    }
+
+    private static int start() {
+      // spread threads over the slots to keep CAS contention low
+      return (int) Thread.currentThread().getId() * 7;
+    }
+  }
+}
@@ -41,6 +41,7 @@ import static org.fusesource.hawtjni.runtime.FieldFlag.CONSTANT;
 import static org.fusesource.hawtjni.runtime.MethodFlag.CONSTANT_INITIALIZER;
 import static org.fusesource.hawtjni.runtime.MethodFlag.CPP_DELETE;
 
+import java.nio.ByteBuffer;
 import org.fusesource.hawtjni.runtime.JniArg;
 import org.fusesource.hawtjni.runtime.JniClass;
 import org.fusesource.hawtjni.runtime.JniField;
@@ -55,6 +56,13 @@ import org.fusesource.hawtjni.runtime.PointerMath;
 @JniClass(name = "leveldb::Slice", flags = {STRUCT, CPP})
 class NativeSlice {
 
+  private static final ThreadLocal<NativeSlice[]> ARGUMENTS = new ThreadLocal<NativeSlice[]>() {
+    @Override
+    protected NativeSlice[] initialValue() {
+      return new NativeSlice[] {new NativeSlice(), new NativeSlice()};
+    }
+  };
+
   @JniField(cast = "const char*")
   private long data_;
   @JniField(cast = "size_t")
@@ -80,6 +88,70 @@ class NativeSlice {
     }
   }
 
+  /**
+   * Returns one of two per-thread slices, set to the given pointer and length,
+   * for passing a primitive pointer/length pair to a binding which takes the
+   * slice by value.  The binding copies the fields before it calls into leveldb,
+   * so the slice can be reused by the next call made on the same thread.
+   */
+  static NativeSlice argument(int index, long data, long length) {
+    NativeSlice rc = ARGUMENTS.get()[index];
+    rc.data_ = data;
+    rc.size_ = length;
+    return rc;
+  }
+
+  /**
+   * @return the data pointer of the leveldb::Slice stored at the given address
+   */
+  static long dataAt(long slice) {
+    if (NativeMemory.AVAILABLE) {
+      return NativeMemory.getAddress(slice);
+    }
+    NativeSlice rc = new NativeSlice();
+    rc.read(slice, 0);
+    return rc.data_;
+  }
+
+  /**
+   * @return the size of the leveldb::Slice stored at the given address
+   */
+  static long sizeAt(long slice) {
+    if (NativeMemory.AVAILABLE) {
+      return NativeMemory.getAddress(slice + NativeMemory.ADDRESS_SIZE);
+    }
+    NativeSlice rc = new NativeSlice();
+    rc.read(slice, 0);
+    return rc.size_;
+  }
+
+  /**
+   * Copies native memory into a java array, without a JNI call when possible.
+   */
+  static void copy(long src, byte[] dest, int offset, int length) {
+    if (NativeMemory.AVAILABLE) {
+      NativeMemory.copy(src, dest, offset, length);
+    } else {
+      NativeBuffer.NativeBufferJNI.buffer_copy(src, 0, dest, offset, length);
+    }
+  }
+
+  /**
+   * Copies native memory into a buffer, starting at its position and without
+   * moving it.
+   */
+  static void copy(long src, ByteBuffer dest, int length) {
+    if (NativeMemory.isAddressable(dest)) {
+      NativeMemory.copy(src, NativeMemory.address(dest), length);
+    } else if (dest.hasArray()) {
+      copy(src, dest.array(), dest.arrayOffset() + dest.position(), length);
+    } else {
+      byte[] copy = new byte[length];
+      copy(src, copy, 0, length);
+      dest.duplicate().put(copy);
+    }
+  }
+
   static NativeBuffer arrayCreate(int dimension) {
     return NativeBuffer.create(dimension * SliceJNI.SIZEOF);
   }
@@ -120,7 +192,7 @@ class NativeSlice {
           "Native slice is larger than the maximum Java array");
     }
     byte[] rc = new byte[(int) size_];
-    NativeBuffer.NativeBufferJNI.buffer_copy(data_, 0, rc, 0, rc.length);
+    copy(data_, rc, 0, rc.length);
     return rc;
   }
 
@@ -46,6 +46,18 @@ import org.fusesource.hawtjni.runtime.JniMethod;
  */
 class NativeStatus extends NativeObject {
 
+  // The values of leveldb::Status::Code
+  static final int OK = 0;
+  static final int NOT_FOUND = 1;
+  static final int CORRUPTION = 2;
+  static final int NOT_SUPPORTED = 3;
+  static final int INVALID_ARGUMENT = 4;
+  static final int IO_ERROR = 5;
+
+  // leveldb::Status holds a single pointer which is null when the status is ok.
+  // Otherwise it points to a 4 byte message length followed by the code byte.
+  private static final int CODE_OFFSET = 4;
+
   public NativeStatus(long self) {
     super(self);
   }
@@ -81,6 +93,49 @@ class NativeStatus extends NativeObject {
     }
   }
 
+  /**
+   * Reads the code of a status returned by the bindings.  This does not
+   * allocate and, when {@link NativeMemory} is available, does not call
+   * into native code either.  The status still has to be {@link #free(long) freed}.
+   */
+  static int code(long status) {
+    if (NativeMemory.AVAILABLE) {
+      long state = NativeMemory.getAddress(status);
+      return state == 0 ? OK : NativeMemory.getByte(state + CODE_OFFSET);
+    }
+    if (StatusJNI.ok(status)) {
+      return OK;
+    }
+    if (StatusJNI.IsNotFound(status)) {
+      return NOT_FOUND;
+    }
+    String message = message(status);
+    if (message.startsWith("Corruption")) {
+      return CORRUPTION;
+    } else if (message.startsWith("Not implemented")) {
+      return NOT_SUPPORTED;
+    } else if (message.startsWith("Invalid argument")) {
+      return INVALID_ARGUMENT;
+    }
+    return IO_ERROR;
+  }
+
+  /**
+   * Builds the message of a status.  Only meant for the failure path.
+   */
+  static String message(long status) {
+    NativeStdString rc = new NativeStdString(StatusJNI.ToString(status));
+    try {
+      return rc.toString();
+    } finally {
+      rc.delete();
+    }
+  }
+
+  static void free(long status) {
+    StatusJNI.delete(status);
+  }
+
   @JniClass(name = "leveldb::Status", flags = {CPP})
   static class StatusJNI {
     static {
@@ -70,6 +70,15 @@ class NativeStdString extends NativeObject {
     return StdStringJNI.length(self);
   }
 
+  /**
+   * @return a pointer to the characters of the string, valid until the
+   *     string is modified or deleted.
+   */
+  public long data() {
+    assertAllocated();
+    return StdStringJNI.c_str_ptr(self);
+  }
+
   public byte[] toByteArray() {
     long l = length();
     if (l > Integer.MAX_VALUE) {
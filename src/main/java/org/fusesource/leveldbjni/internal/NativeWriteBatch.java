@@ -42,6 +42,7 @@ import static org.fusesource.hawtjni.runtime.MethodFlag.CPP_NEW;
 import org.fusesource.hawtjni.runtime.JniArg;
 import org.fusesource.hawtjni.runtime.JniClass;
 import org.fusesource.hawtjni.runtime.JniMethod;
+import org.fusesource.hawtjni.runtime.PointerMath;
 
 /**
  * Provides a java interface to the C++ leveldb::WriteBatch class.
@@ -50,6 +51,13 @@ import org.fusesource.hawtjni.runtime.JniMethod;
  */
 public class NativeWriteBatch extends NativeObject {
 
+  /**
+   * The size of the sequence number and count which start a batch's rep.
+   */
+  static final int HEADER_SIZE = 12;
+  static final byte TYPE_DELETION = 0;
+  static final byte TYPE_VALUE = 1;
+
   public NativeWriteBatch() {
     super(WriteBatchJNI.create());
   }
@@ -62,46 +70,35 @@ public class NativeWriteBatch extends NativeObject {
 
   public void delete(byte[] key) {
     NativeDB.checkArgNotNull(key, "key");
-    NativeBuffer keyBuffer = NativeBuffer.create(key);
+    NativeArena arena = NativeArena.acquire();
     try {
-      delete(keyBuffer);
+      delete(arena.copy(key), key.length);
     } finally {
-      keyBuffer.delete();
+      arena.release();
     }
   }
 
-  private void delete(NativeBuffer keyBuffer) {
-    delete(new NativeSlice(keyBuffer));
-  }
-
-  private void delete(NativeSlice keySlice) {
+  void delete(long key, long keyLength) {
     assertAllocated();
-    WriteBatchJNI.Delete(self, keySlice);
+    WriteBatchJNI.Delete(self, NativeSlice.argument(0, key, keyLength));
   }
 
   public void put(byte[] key, byte[] value) {
     NativeDB.checkArgNotNull(key, "key");
     NativeDB.checkArgNotNull(value, "value");
-    NativeBuffer keyBuffer = NativeBuffer.create(key);
+    NativeArena arena = NativeArena.acquire();
     try {
-      NativeBuffer valueBuffer = NativeBuffer.create(value);
-      try {
-        put(keyBuffer, valueBuffer);
-      } finally {
-        valueBuffer.delete();
-      }
+      long data = arena.copy(key, value);
+      put(data, key.length, PointerMath.add(data, key.length), value.length);
     } finally {
-      keyBuffer.delete();
+      arena.release();
     }
   }
 
-  private void put(NativeBuffer keyBuffer, NativeBuffer valueBuffer) {
-    put(new NativeSlice(keyBuffer), new NativeSlice(valueBuffer));
-  }
-
-  private void put(NativeSlice keySlice, NativeSlice valueSlice) {
+  void put(long key, long keyLength, long value, long valueLength) {
     assertAllocated();
-    WriteBatchJNI.Put(self, keySlice, valueSlice);
+    WriteBatchJNI.Put(self,
+        NativeSlice.argument(0, key, keyLength), NativeSlice.argument(1, value, valueLength));
   }
 
   public void clear() {
@@ -119,6 +116,71 @@ public class NativeWriteBatch extends NativeObject {
     WriteBatchJNI.Append(self, source.self);
   }
 
+  /**
+   * Replaces the contents of the batch with a rep in leveldb's wire format: a
+   * fixed64 sequence number and a fixed32 count, followed by the records.
+   *
+   * <p>The rep is copied to native memory once and its records are added one
+   * by one, with slices pointing into that copy.  Installing the rep with a
+   * single call would need a binding for WriteBatchInternal::SetContents,
+   * which the native library does not have.</p>
+   */
+  void setContents(byte[] rep, int length) {
+    assertAllocated();
+    WriteBatchJNI.Clear(self);
+    append(rep, HEADER_SIZE, length - HEADER_SIZE);
+  }
+
+  /**
+   * Adds records in leveldb's wire format, as they follow the header of a rep.
+   */
+  void append(byte[] records, int offset, int length) {
+    assertAllocated();
+    if (length <= 0) {
+      return;
+    }
+    NativeArena arena = NativeArena.acquire();
+    try {
+      replay(records, offset, offset + length, arena.copy(records, offset, length));
+    } finally {
+      arena.release();
+    }
+  }
+
+  /**
+   * @param data the address of the native copy of records[offset]
+   */
+  private void replay(byte[] records, int offset, int end, long data) {
+    int[] position = new int[] {offset};
+    while (position[0] < end) {
+      byte type = records[position[0]++];
+      int keyLength = varint32(records, position);
+      long key = PointerMath.add(data, position[0] - offset);
+      position[0] += keyLength;
+      if (type == TYPE_VALUE) {
+        int valueLength = varint32(records, position);
+        put(key, keyLength, PointerMath.add(data, position[0] - offset), valueLength);
+        position[0] += valueLength;
+      } else if (type == TYPE_DELETION) {
+        delete(key, keyLength);
+      } else {
+        throw new IllegalArgumentException("Unknown WriteBatch tag: " + type);
+      }
+    }
+  }
+
+  private static int varint32(byte[] data, int[] position) {
+    int rc = 0;
+    for (int shift = 0; shift <= 28; shift += 7) {
+      int b = data[position[0]++];
+      rc |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return rc;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint32");
+  }
+
   @JniClass(name = "leveldb::WriteBatch", flags = {CPP})
   private static class WriteBatchJNI {
     static {
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collector;
+
+/**
+ * Scans a key range on several threads at once.  The range is split into
+ * sub-ranges holding about the same number of bytes on disk, and each
+ * sub-range is scanned by its own iterator in a {@link ForkJoinPool}.  All
+ * iterators read from one snapshot: the one in the read options, or one taken
+ * for the duration of the scan.
+ *
+ * <p>The range is only split when the database uses the bytewise comparator
+ * and part of the range has been written to disk; otherwise it is scanned as a
+ * single partition.</p>
+ */
+public class ParallelScan {
+
+  private static final int PREFETCH_ENTRIES = 256;
+  private static final long PREFETCH_BYTES = 1024 * 1024;
+
+  private final NativeDB db;
+  private final NativeReadOptions options;
+  private final byte[] start;
+  private final byte[] limit;
+  private int partitions = Runtime.getRuntime().availableProcessors();
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+  private ScanFilter filter;
+
+  /**
+   * @param start the first key of the range, or null to start at the first key
+   * @param limit the key past the end of the range, or null to run to the last key
+   */
+  ParallelScan(NativeDB db, NativeReadOptions options, byte[] start, byte[] limit) {
+    this.db = db;
+    this.options = options;
+    this.start = start == null ? new byte[0] : start.clone();
+    this.limit = limit == null ? null : limit.clone();
+  }
+
+  /**
+   * Sets the number of partitions the range is split into, which defaults to
+   * the number of available processors.
+   */
+  public ParallelScan partitions(int partitions) {
+    if (partitions < 1) {
+      throw new IllegalArgumentException("partitions must be positive");
+    }
+    this.partitions = partitions;
+    return this;
+  }
+
+  /**
+   * Sets the pool the partitions are scanned in, which defaults to the common pool.
+   */
+  public ParallelScan pool(ForkJoinPool pool) {
+    NativeDB.checkArgNotNull(pool, "pool");
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * Only hands the entries matching the filter to the partitions.
+   */
+  public ParallelScan filter(ScanFilter filter) {
+    this.filter = filter;
+    return this;
+  }
+
+  /**
+   * Called with each entry of the range, concurrently from the threads
+   * scanning the partitions.
+   */
+  public interface EntryConsumer {
+    void accept(int partition, byte[] key, byte[] value);
+  }
+
+  /**
+   * Called once per partition, with an iterator restricted to the partition
+   * and positioned at its first entry.
+   */
+  public interface PartitionFunction<R> {
+    R apply(int partition, JniDBIterator entries);
+  }
+
+  public void forEach(final EntryConsumer consumer) {
+    NativeDB.checkArgNotNull(consumer, "consumer");
+    mapPartitions(new PartitionFunction<Void>() {
+      public Void apply(int partition, JniDBIterator entries) {
+        while (entries.hasNext()) {
+          Map.Entry<byte[], byte[]> entry = entries.next();
+          consumer.accept(partition, entry.getKey(), entry.getValue());
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Collects every partition into its own result container, then combines the
+   * containers in key order.
+   */
+  @SuppressWarnings("unchecked")
+  public <A, R> R collect(final Collector<? super Map.Entry<byte[], byte[]>, A, R> collector) {
+    NativeDB.checkArgNotNull(collector, "collector");
+    List<A> results = mapPartitions(new PartitionFunction<A>() {
+      public A apply(int partition, JniDBIterator entries) {
+        A rc = collector.supplier().get();
+        while (entries.hasNext()) {
+          collector.accumulator().accept(rc, entries.next());
+        }
+        return rc;
+      }
+    });
+    A rc = results.get(0);
+    for (int i = 1; i < results.size(); i++) {
+      rc = collector.combiner().apply(rc, results.get(i));
+    }
+    if (collector.characteristics().contains(Collector.Characteristics.IDENTITY_FINISH)) {
+      return (R) rc;
+    }
+    return collector.finisher().apply(rc);
+  }
+
+  /**
+   * Runs the function over every partition and waits for all of them.
+   *
+   * @return the results in key order of the partitions
+   */
+  public <R> List<R> mapPartitions(final PartitionFunction<R> function) {
+    NativeDB.checkArgNotNull(function, "function");
+    NativeSnapshot snapshot = null;
+    NativeSnapshot view = options.snapshot();
+    if (view == null) {
+      snapshot = db.getSnapshot();
+      view = snapshot;
+    }
+    try {
+      List<byte[]> bounds = new ArrayList<byte[]>();
+      bounds.add(start);
+      byte[] end = limit == null ? RangeSplitter.pastLastKey(db, view(view)) : limit;
+      if (end != null) {
+        bounds.addAll(RangeSplitter.split(db, start, end, partitions));
+      }
+      bounds.add(limit);
+
+      List<ForkJoinTask<R>> tasks = new ArrayList<ForkJoinTask<R>>();
+      for (int i = 0; i + 1 < bounds.size(); i++) {
+        tasks.add(pool.submit(scan(function, i, bounds.get(i), bounds.get(i + 1), view)));
+      }
+      // every task has to finish before the snapshot is released
+      List<R> rc = new ArrayList<R>(tasks.size());
+      RuntimeException failure = null;
+      for (ForkJoinTask<R> task : tasks) {
+        try {
+          rc.add(task.join());
+        } catch (RuntimeException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return Collections.unmodifiableList(rc);
+    } finally {
+      if (snapshot != null) {
+        db.releaseSnapshot(snapshot);
+      }
+    }
+  }
+
+  private <R> Callable<R> scan(final PartitionFunction<R> function, final int partition,
+                               final byte[] lower, final byte[] upper,
+                               final NativeSnapshot snapshot) {
+    return new Callable<R>() {
+      public R call() {
+        NativeIterator iterator = db.iterator(view(snapshot)).bounds(lower, upper).filter(filter);
+        JniDBIterator entries = new JniDBIterator(iterator);
+        try {
+          entries.prefetch(PREFETCH_ENTRIES, PREFETCH_BYTES);
+          entries.seekToFirst();
+          return function.apply(partition, entries);
+        } finally {
+          entries.close();
+        }
+      }
+    };
+  }
+
+  private NativeReadOptions view(NativeSnapshot snapshot) {
+    return new NativeReadOptions()
+        .fillCache(options.fillCache())
+        .verifyChecksums(options.verifyChecksums())
+        .snapshot(snapshot);
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A spliterator over a key range, read from one pinned snapshot.  Each
+ * spliterator opens its own iterator on first use, and splits on the
+ * approximate-size midpoint of its range for as long as it has not started.
+ *
+ * <p>Values are read lazily: the value of the current entry is copied out of
+ * the iterator when it is asked for, and an entry asked for its value after the
+ * iterator has moved on looks it up in the snapshot instead.  The snapshot is
+ * released when the stream is closed, so the value of an entry which was not
+ * asked for before then cannot be read any more.</p>
+ */
+final class RangeSpliterator implements Spliterator<Map.Entry<byte[], byte[]>> {
+
+  private final Scan scan;
+  private byte[] lower;
+  private final byte[] upper;
+  private NativeIterator iterator;
+  private LazyEntry current;
+  private boolean done;
+
+  private RangeSpliterator(Scan scan, byte[] lower, byte[] upper) {
+    this.scan = scan;
+    this.lower = lower;
+    this.upper = upper;
+  }
+
+  /**
+   * @return a stream over the keys from start up to, but excluding, limit.
+   *     Closing the stream closes the iterators which are still open and
+   *     releases the snapshot it pinned.
+   */
+  static Stream<Map.Entry<byte[], byte[]>> stream(NativeDB db, NativeReadOptions options,
+                                                  byte[] start, byte[] limit) {
+    final Scan scan = new Scan(db, options);
+    RangeSpliterator rc = new RangeSpliterator(scan,
+        start == null ? new byte[0] : start.clone(), limit == null ? null : limit.clone());
+    return StreamSupport.stream(rc, false).onClose(new Runnable() {
+      public void run() {
+        scan.close();
+      }
+    });
+  }
+
+  public boolean tryAdvance(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+    if (done) {
+      return false;
+    }
+    try {
+      if (iterator == null) {
+        iterator = scan.open(lower, upper);
+        iterator.seekToFirst();
+      } else {
+        current.detach();
+        iterator.next();
+      }
+      if (!iterator.isValid()) {
+        finish();
+        return false;
+      }
+      current = new LazyEntry(this, iterator.key());
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    }
+    action.accept(current);
+    return true;
+  }
+
+  private void finish() {
+    done = true;
+    if (current != null) {
+      current.detach();
+      current = null;
+    }
+    if (iterator != null) {
+      scan.close(iterator);
+      iterator = null;
+    }
+  }
+
+  public Spliterator<Map.Entry<byte[], byte[]>> trySplit() {
+    if (done || iterator != null) {
+      return null;
+    }
+    byte[] end = upper == null ? scan.pastLastKey() : upper;
+    if (end == null) {
+      return null;
+    }
+    List<byte[]> middle = RangeSplitter.split(scan.db, lower, end, 2);
+    if (middle.isEmpty()) {
+      return null;
+    }
+    RangeSpliterator prefix = new RangeSpliterator(scan, lower, middle.get(0));
+    lower = middle.get(0);
+    return prefix;
+  }
+
+  public long estimateSize() {
+    return Long.MAX_VALUE;
+  }
+
+  public int characteristics() {
+    return ORDERED | DISTINCT | NONNULL;
+  }
+
+  /**
+   * The state shared by all the spliterators of one stream.
+   */
+  private static final class Scan {
+    final NativeDB db;
+    final NativeReadOptions options;
+    private final NativeSnapshot snapshot;
+    private final Set<NativeIterator> open = new HashSet<NativeIterator>();
+    private byte[] pastLastKey;
+    private volatile boolean closed;
+
+    Scan(NativeDB db, NativeReadOptions options) {
+      this.db = db;
+      if (options.snapshot() == null) {
+        snapshot = db.getSnapshot();
+        this.options = new NativeReadOptions()
+            .fillCache(options.fillCache())
+            .verifyChecksums(options.verifyChecksums())
+            .snapshot(snapshot);
+      } else {
+        snapshot = null;
+        this.options = options;
+      }
+    }
+
+    synchronized NativeIterator open(byte[] lower, byte[] upper) {
+      if (closed) {
+        throw new IllegalStateException("The stream is closed");
+      }
+      NativeIterator rc = db.iterator(options).bounds(lower, upper);
+      open.add(rc);
+      return rc;
+    }
+
+    synchronized void close(NativeIterator iterator) {
+      if (open.remove(iterator)) {
+        iterator.delete();
+      }
+    }
+
+    synchronized byte[] pastLastKey() {
+      if (pastLastKey == null) {
+        pastLastKey = RangeSplitter.pastLastKey(db, options);
+      }
+      return pastLastKey;
+    }
+
+    byte[] get(byte[] key) {
+      if (closed) {
+        throw new IllegalStateException(
+            "The stream is closed, values must be read before closing it");
+      }
+      try {
+        return db.get(options, key);
+      } catch (NativeDB.DBException e) {
+        if (e.isNotFound()) {
+          return null;
+        }
+        throw new RuntimeException(e);
+      }
+    }
+
+    synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (NativeIterator iterator : open) {
+        iterator.delete();
+      }
+      open.clear();
+      if (snapshot != null) {
+        db.releaseSnapshot(snapshot);
+      }
+    }
+  }
+
+  private static final class LazyEntry implements Map.Entry<byte[], byte[]> {
+    private final Scan scan;
+    private final byte[] key;
+    private RangeSpliterator owner;
+    private byte[] value;
+
+    LazyEntry(RangeSpliterator owner, byte[] key) {
+      this.scan = owner.scan;
+      this.owner = owner;
+      this.key = key;
+    }
+
+    void detach() {
+      owner = null;
+    }
+
+    public byte[] getKey() {
+      return key;
+    }
+
+    public byte[] getValue() {
+      if (value == null) {
+        RangeSpliterator rc = owner;
+        if (rc != null) {
+          try {
+            value = rc.iterator.value();
+          } catch (NativeDB.DBException e) {
+            throw new RuntimeException(e);
+          }
+        } else {
+          value = scan.get(key);
+        }
+      }
+      return value;
+    }
+
+    public byte[] setValue(byte[] value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
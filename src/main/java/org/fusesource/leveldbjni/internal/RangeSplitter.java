@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a key range into sub-ranges holding about the same number of bytes
+ * on disk, by bisecting the bytewise key space against
+ * {@link NativeDB#getApproximateSizes(NativeRange...)}.
+ */
+final class RangeSplitter {
+
+  private static final int ROUNDS = 32;
+
+  private RangeSplitter() {
+  }
+
+  /**
+   * @return up to parts - 1 increasing keys strictly between start and limit.
+   *     The list is empty when the database uses a custom comparator, for
+   *     which bytewise midpoints mean nothing, or when the range has no data
+   *     on disk yet.
+   */
+  static List<byte[]> split(NativeDB db, byte[] start, byte[] limit, int parts) {
+    List<byte[]> rc = new ArrayList<byte[]>();
+    if (parts < 2 || db.comparator() != null || compare(start, limit) >= 0) {
+      return rc;
+    }
+    long total = db.getApproximateSizes(new NativeRange(start, limit))[0];
+    if (total <= 0) {
+      return rc;
+    }
+    int count = parts - 1;
+    byte[][] lower = new byte[count][];
+    byte[][] upper = new byte[count][];
+    Arrays.fill(lower, start);
+    Arrays.fill(upper, limit);
+    // all split points are bisected in lock step, so each round is one native call
+    for (int round = 0; round < ROUNDS; round++) {
+      byte[][] middle = new byte[count][];
+      NativeRange[] ranges = new NativeRange[count];
+      for (int i = 0; i < count; i++) {
+        middle[i] = midpoint(lower[i], upper[i]);
+        ranges[i] = new NativeRange(start, middle[i] == null ? upper[i] : middle[i]);
+      }
+      long[] sizes = db.getApproximateSizes(ranges);
+      for (int i = 0; i < count; i++) {
+        if (middle[i] == null) {
+          continue;
+        }
+        if (sizes[i] < total / parts * (i + 1)) {
+          lower[i] = middle[i];
+        } else {
+          upper[i] = middle[i];
+        }
+      }
+    }
+    byte[] last = start;
+    for (byte[] key : upper) {
+      if (compare(key, last) > 0 && compare(key, limit) < 0) {
+        rc.add(key);
+        last = key;
+      }
+    }
+    return rc;
+  }
+
+  /**
+   * @return the smallest key past the last key of the database, or null if it is empty
+   */
+  static byte[] pastLastKey(NativeDB db, NativeReadOptions options) {
+    NativeIterator iterator = db.iterator(options);
+    try {
+      iterator.seekToLast();
+      if (!iterator.isValid()) {
+        return null;
+      }
+      byte[] key = iterator.key();
+      return Arrays.copyOf(key, key.length + 1);
+    } catch (NativeDB.DBException e) {
+      throw new RuntimeException(e);
+    } finally {
+      iterator.delete();
+    }
+  }
+
+  /**
+   * @return a key halfway between the two keys in the bytewise key space, or
+   *     null if they are adjacent.
+   */
+  static byte[] midpoint(byte[] low, byte[] high) {
+    int width = Math.max(low.length, high.length);
+    BigInteger a = toInteger(low, width);
+    BigInteger b = toInteger(high, width);
+    if (b.subtract(a).compareTo(BigInteger.ONE) <= 0) {
+      width++;
+      a = a.shiftLeft(8);
+      b = b.shiftLeft(8);
+    }
+    if (b.compareTo(a) <= 0) {
+      return null;
+    }
+    byte[] rc = toKey(a.add(b).shiftRight(1), width);
+    // drop trailing zeros as long as the key stays past the low end
+    int length = rc.length;
+    while (length > 0 && rc[length - 1] == 0
+        && compare(Arrays.copyOf(rc, length - 1), low) > 0) {
+      length--;
+    }
+    rc = Arrays.copyOf(rc, length);
+    return compare(rc, low) > 0 && compare(rc, high) < 0 ? rc : null;
+  }
+
+  private static BigInteger toInteger(byte[] key, int width) {
+    return new BigInteger(1, Arrays.copyOf(key, width));
+  }
+
+  private static byte[] toKey(BigInteger value, int width) {
+    byte[] bytes = value.toByteArray();
+    byte[] rc = new byte[width];
+    int length = Math.min(bytes.length, width);
+    System.arraycopy(bytes, bytes.length - length, rc, width - length, length);
+    return rc;
+  }
+
+  private static int compare(byte[] key1, byte[] key2) {
+    return NativeComparator.BYTEWISE_COMPARATOR.compare(key1, key2);
+  }
+}
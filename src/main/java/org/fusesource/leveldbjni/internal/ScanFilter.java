@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+/**
+ * A predicate over the keys and values of a scan, which is evaluated directly
+ * against the memory leveldb returns so that only matching entries are copied
+ * into java.  Filters are immutable and may be shared between threads.
+ *
+ * <pre>
+ * ScanFilter filter = ScanFilter.keyPrefix(bytes("user1/"))
+ *     .and(ScanFilter.valueContains(bytes("ERROR")));
+ * </pre>
+ *
+ * <p>When filters are combined, the ones which only look at the key are
+ * evaluated first, so the value of an entry is only fetched when the key
+ * checks pass.</p>
+ */
+public abstract class ScanFilter {
+
+  ScanFilter() {
+  }
+
+  /**
+   * @return true if the filter has to look at the value of an entry
+   */
+  abstract boolean needsValue();
+
+  abstract boolean matches(Entry entry);
+
+  public static ScanFilter keyPrefix(byte[] prefix) {
+    return keyBytesAt(0, prefix);
+  }
+
+  public static ScanFilter valuePrefix(byte[] prefix) {
+    return valueBytesAt(0, prefix);
+  }
+
+  /**
+   * Matches the entries whose key holds the given bytes at the given offset.
+   */
+  public static ScanFilter keyBytesAt(int offset, byte[] bytes) {
+    return new BytesAt(false, offset, bytes);
+  }
+
+  /**
+   * Matches the entries whose value holds the given bytes at the given offset.
+   */
+  public static ScanFilter valueBytesAt(int offset, byte[] bytes) {
+    return new BytesAt(true, offset, bytes);
+  }
+
+  /**
+   * Matches the entries whose key sorts bytewise at or past from and before to.
+   * Either end may be null.
+   */
+  public static ScanFilter keyRange(byte[] from, byte[] to) {
+    return new KeyRange(from, to);
+  }
+
+  /**
+   * Matches the entries whose key length is between min and max, inclusive.
+   */
+  public static ScanFilter keyLength(long min, long max) {
+    return new Length(false, min, max);
+  }
+
+  /**
+   * Matches the entries whose value length is between min and max, inclusive.
+   */
+  public static ScanFilter valueLength(long min, long max) {
+    return new Length(true, min, max);
+  }
+
+  public static ScanFilter keyContains(byte[] pattern) {
+    return new Contains(false, pattern);
+  }
+
+  public static ScanFilter valueContains(byte[] pattern) {
+    return new Contains(true, pattern);
+  }
+
+  public ScanFilter and(ScanFilter other) {
+    return new And(this, other);
+  }
+
+  public ScanFilter or(ScanFilter other) {
+    return new Or(this, other);
+  }
+
+  public ScanFilter negate() {
+    return new Not(this);
+  }
+
+  /**
+   * The entry a filter is evaluated against.  The value is only fetched when
+   * it is asked for.
+   */
+  interface Entry {
+    Region key();
+
+    Region value();
+  }
+
+  /**
+   * A run of bytes held either in native memory or, when it cannot be read in
+   * place, in a java array.
+   */
+  static final class Region {
+    private long address;
+    private byte[] array = new byte[0];
+    private boolean copied;
+    private long length;
+
+    /**
+     * Points the region at the data of the leveldb::Slice at the given address.
+     */
+    void set(long slice) {
+      address = NativeSlice.dataAt(slice);
+      length = NativeSlice.sizeAt(slice);
+      copied = !NativeMemory.AVAILABLE;
+      if (copied) {
+        if (array.length < length) {
+          array = new byte[(int) length];
+        }
+        NativeSlice.copy(address, array, 0, (int) length);
+      }
+    }
+
+    long length() {
+      return length;
+    }
+
+    byte get(long index) {
+      return copied ? array[(int) index] : NativeMemory.getByte(address + index);
+    }
+
+    boolean equals(long offset, byte[] bytes) {
+      if (offset < 0 || offset + bytes.length > length) {
+        return false;
+      }
+      for (int i = 0; i < bytes.length; i++) {
+        if (get(offset + i) != bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    int compareTo(byte[] bytes) {
+      long common = Math.min(length, bytes.length);
+      for (int i = 0; i < common; i++) {
+        int diff = (get(i) & 0xFF) - (bytes[i] & 0xFF);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return Long.signum(length - bytes.length);
+    }
+
+    boolean contains(byte[] pattern) {
+      if (pattern.length == 0) {
+        return true;
+      }
+      byte first = pattern[0];
+      long last = length - pattern.length;
+      for (long i = 0; i <= last; i++) {
+        if (get(i) == first && equals(i, pattern)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static Region region(Entry entry, boolean value) {
+    return value ? entry.value() : entry.key();
+  }
+
+  private static final class BytesAt extends ScanFilter {
+    private final boolean value;
+    private final int offset;
+    private final byte[] bytes;
+
+    BytesAt(boolean value, int offset, byte[] bytes) {
+      NativeDB.checkArgNotNull(bytes, "bytes");
+      if (offset < 0) {
+        throw new IllegalArgumentException("offset cannot be negative");
+      }
+      this.value = value;
+      this.offset = offset;
+      this.bytes = bytes.clone();
+    }
+
+    boolean needsValue() {
+      return value;
+    }
+
+    boolean matches(Entry entry) {
+      return region(entry, value).equals(offset, bytes);
+    }
+  }
+
+  private static final class KeyRange extends ScanFilter {
+    private final byte[] from;
+    private final byte[] to;
+
+    KeyRange(byte[] from, byte[] to) {
+      this.from = from == null ? null : from.clone();
+      this.to = to == null ? null : to.clone();
+    }
+
+    boolean needsValue() {
+      return false;
+    }
+
+    boolean matches(Entry entry) {
+      Region key = entry.key();
+      return (from == null || key.compareTo(from) >= 0) && (to == null || key.compareTo(to) < 0);
+    }
+  }
+
+  private static final class Length extends ScanFilter {
+    private final boolean value;
+    private final long min;
+    private final long max;
+
+    Length(boolean value, long min, long max) {
+      if (min > max) {
+        throw new IllegalArgumentException("min cannot be larger than max");
+      }
+      this.value = value;
+      this.min = min;
+      this.max = max;
+    }
+
+    boolean needsValue() {
+      return value;
+    }
+
+    boolean matches(Entry entry) {
+      long length = region(entry, value).length();
+      return length >= min && length <= max;
+    }
+  }
+
+  private static final class Contains extends ScanFilter {
+    private final boolean value;
+    private final byte[] pattern;
+
+    Contains(boolean value, byte[] pattern) {
+      NativeDB.checkArgNotNull(pattern, "pattern");
+      this.value = value;
+      this.pattern = pattern.clone();
+    }
+
+    boolean needsValue() {
+      return value;
+    }
+
+    boolean matches(Entry entry) {
+      return region(entry, value).contains(pattern);
+    }
+  }
+
+  private static final class And extends ScanFilter {
+    private final ScanFilter first;
+    private final ScanFilter second;
+
+    And(ScanFilter first, ScanFilter second) {
+      NativeDB.checkArgNotNull(second, "other");
+      // evaluate the key checks before anything which fetches the value
+      boolean swap = first.needsValue() && !second.needsValue();
+      this.first = swap ? second : first;
+      this.second = swap ? first : second;
+    }
+
+    boolean needsValue() {
+      return first.needsValue() || second.needsValue();
+    }
+
+    boolean matches(Entry entry) {
+      return first.matches(entry) && second.matches(entry);
+    }
+  }
+
+  private static final class Or extends ScanFilter {
+    private final ScanFilter first;
+    private final ScanFilter second;
+
+    Or(ScanFilter first, ScanFilter second) {
+      NativeDB.checkArgNotNull(second, "other");
+      boolean swap = first.needsValue() && !second.needsValue();
+      this.first = swap ? second : first;
+      this.second = swap ? first : second;
+    }
+
+    boolean needsValue() {
+      return first.needsValue() || second.needsValue();
+    }
+
+    boolean matches(Entry entry) {
+      return first.matches(entry) || second.matches(entry);
+    }
+  }
+
+  private static final class Not extends ScanFilter {
+    private final ScanFilter filter;
+
+    Not(ScanFilter filter) {
+      this.filter = filter;
+    }
+
+    boolean needsValue() {
+      return filter.needsValue();
+    }
+
+    boolean matches(Entry entry) {
+      return !filter.matches(entry);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One page of a range scan.  The keys and values of the page are packed back
+ * to back in a single buffer, and {@link #continuation()} tells where the next
+ * page starts.
+ *
+ * @see JniDB#scanPage(byte[], byte[], int, long)
+ */
+public class ScanPage {
+
+  private final NativeIterator.Batch batch;
+  private final byte[] continuation;
+
+  ScanPage(NativeIterator.Batch batch, byte[] continuation) {
+    this.batch = batch;
+    this.continuation = continuation;
+  }
+
+  /**
+   * @return the number of entries in the page
+   */
+  public int size() {
+    return batch.count();
+  }
+
+  public byte[] key(int index) {
+    return Arrays.copyOfRange(batch.data(), start(index, 0), start(index, 1));
+  }
+
+  public byte[] value(int index) {
+    return Arrays.copyOfRange(batch.data(), start(index, 1), start(index, 2));
+  }
+
+  /**
+   * @return a read-only view of the key in the packed buffer, without a copy
+   */
+  public ByteBuffer keyBuffer(int index) {
+    return view(start(index, 0), start(index, 1));
+  }
+
+  /**
+   * @return a read-only view of the value in the packed buffer, without a copy
+   */
+  public ByteBuffer valueBuffer(int index) {
+    return view(start(index, 1), start(index, 2));
+  }
+
+  /**
+   * @return a read-only view of the whole packed buffer
+   */
+  public ByteBuffer buffer() {
+    return view(0, batch.length());
+  }
+
+  /**
+   * @return true if there are entries past this page
+   */
+  public boolean hasMore() {
+    return continuation != null;
+  }
+
+  /**
+   * @return the opaque token to pass as the start of the next page, or null
+   *     when this is the last page
+   */
+  public byte[] continuation() {
+    return continuation == null ? null : continuation.clone();
+  }
+
+  private int start(int index, int slice) {
+    if (index < 0 || index >= batch.count()) {
+      throw new IndexOutOfBoundsException("index: " + index + ", size: " + batch.count());
+    }
+    return batch.offset(2 * index + slice);
+  }
+
+  private ByteBuffer view(int from, int to) {
+    return ByteBuffer.wrap(batch.data(), from, to - from).slice().asReadOnlyBuffer();
+  }
+}
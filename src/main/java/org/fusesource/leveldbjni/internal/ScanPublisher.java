@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the entries of a key range to reactive streams subscribers.
+ * Entries are read from leveldb in batches sized by the outstanding demand,
+ * on the given executor, and never on the thread calling
+ * {@link Subscription#request(long)}.  Every subscription reads its own
+ * snapshot, or the one in the read options, and releases its iterator and
+ * snapshot once it completes, fails or is cancelled.
+ *
+ * <p>On Java 9 and later the publisher can be turned into a
+ * {@code java.util.concurrent.Flow.Publisher} with
+ * {@code org.reactivestreams.FlowAdapters}.</p>
+ */
+public class ScanPublisher implements Publisher<Map.Entry<byte[], byte[]>> {
+
+  static final int MAX_BATCH_ENTRIES = 256;
+  static final long MAX_BATCH_BYTES = 1024 * 1024;
+
+  private final NativeDB db;
+  private final NativeReadOptions options;
+  private final byte[] start;
+  private final byte[] limit;
+  private final Executor executor;
+
+  ScanPublisher(NativeDB db, NativeReadOptions options, byte[] start, byte[] limit,
+                Executor executor) {
+    this.db = db;
+    this.options = options;
+    this.start = start == null ? null : start.clone();
+    this.limit = limit == null ? null : limit.clone();
+    this.executor = executor;
+  }
+
+  public void subscribe(Subscriber<? super Map.Entry<byte[], byte[]>> subscriber) {
+    NativeDB.checkArgNotNull(subscriber, "subscriber");
+    ScanSubscription subscription = new ScanSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+  }
+
+  /**
+   * Serializes all the native work of one subscription on the executor: a
+   * drain pass is only scheduled when none is pending or running.
+   */
+  private final class ScanSubscription implements Subscription, Runnable {
+    private final Subscriber<? super Map.Entry<byte[], byte[]>> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final NativeIterator.Batch batch = new NativeIterator.Batch();
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+    private NativeIterator iterator;
+    private NativeSnapshot snapshot;
+    private boolean done;
+
+    ScanSubscription(Subscriber<? super Map.Entry<byte[], byte[]>> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = new IllegalArgumentException(
+            "Subscriber requested a non-positive number of entries: " + n);
+      } else {
+        long current;
+        long next;
+        do {
+          current = demand.get();
+          next = current + n < 0 ? Long.MAX_VALUE : current + n;
+        } while (!demand.compareAndSet(current, next));
+      }
+      schedule();
+    }
+
+    public void cancel() {
+      cancelled = true;
+      schedule();
+    }
+
+    private void schedule() {
+      if (pending.getAndIncrement() == 0) {
+        try {
+          executor.execute(this);
+        } catch (RuntimeException e) {
+          // the executor refused the work, nothing will drain the subscription
+          pending.set(0);
+          cancelled = true;
+          close();
+          subscriber.onError(e);
+        }
+      }
+    }
+
+    public void run() {
+      int missed = 1;
+      do {
+        drain();
+        missed = pending.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void drain() {
+      if (done) {
+        return;
+      }
+      if (cancelled) {
+        close();
+        return;
+      }
+      if (invalidRequest != null) {
+        close();
+        subscriber.onError(invalidRequest);
+        return;
+      }
+      try {
+        if (iterator == null) {
+          open();
+        }
+        long requested = demand.get();
+        while (requested > 0 && !cancelled) {
+          if (!batch.isValid()) {
+            if (!iterator.isValid()) {
+              break;
+            }
+            iterator.fill(batch, (int) Math.min(requested, MAX_BATCH_ENTRIES), MAX_BATCH_BYTES);
+          }
+          while (batch.isValid() && requested > 0 && !cancelled) {
+            Map.Entry<byte[], byte[]> entry =
+                new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(batch.key(), batch.value());
+            batch.next();
+            subscriber.onNext(entry);
+            requested = demand.decrementAndGet();
+          }
+        }
+        if (cancelled) {
+          close();
+        } else if (!batch.isValid() && !iterator.isValid()) {
+          close();
+          subscriber.onComplete();
+        }
+      } catch (Throwable e) {
+        close();
+        subscriber.onError(e);
+      }
+    }
+
+    private void open() throws NativeDB.DBException {
+      NativeSnapshot view = options.snapshot();
+      if (view == null) {
+        snapshot = db.getSnapshot();
+        view = snapshot;
+      }
+      NativeReadOptions readOptions = new NativeReadOptions()
+          .fillCache(options.fillCache())
+          .verifyChecksums(options.verifyChecksums())
+          .snapshot(view);
+      iterator = db.iterator(readOptions).bounds(start, limit);
+      iterator.seekToFirst();
+    }
+
+    private void close() {
+      done = true;
+      if (iterator != null) {
+        iterator.delete();
+        iterator = null;
+      }
+      if (snapshot != null) {
+        db.releaseSnapshot(snapshot);
+        snapshot = null;
+      }
+    }
+  }
+}
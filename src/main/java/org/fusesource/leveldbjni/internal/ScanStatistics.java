@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput counters of the scans reading through a prefetching iterator.
+ * The time counted is the time spent reading batches out of leveldb, so the
+ * rates reflect the scan itself and not what the caller does with the entries.
+ * Counters may be chained, so that every scan also adds up into the totals of
+ * its database.
+ */
+public class ScanStatistics {
+
+  private final ScanStatistics parent;
+  private final AtomicLong entries = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong nanos = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+
+  public ScanStatistics() {
+    this(null);
+  }
+
+  ScanStatistics(ScanStatistics parent) {
+    this.parent = parent;
+  }
+
+  void record(long entries, long bytes, long nanos) {
+    this.entries.addAndGet(entries);
+    this.bytes.addAndGet(bytes);
+    this.nanos.addAndGet(nanos);
+    this.batches.incrementAndGet();
+    if (parent != null) {
+      parent.record(entries, bytes, nanos);
+    }
+  }
+
+  /**
+   * @return the number of entries read
+   */
+  public long entries() {
+    return entries.get();
+  }
+
+  /**
+   * @return the number of key and value bytes read
+   */
+  public long bytes() {
+    return bytes.get();
+  }
+
+  /**
+   * @return the number of batches read out of leveldb
+   */
+  public long batches() {
+    return batches.get();
+  }
+
+  /**
+   * @return the time spent reading batches out of leveldb
+   */
+  public long time(TimeUnit unit) {
+    return unit.convert(nanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  public double entriesPerSecond() {
+    return rate(entries.get());
+  }
+
+  public double bytesPerSecond() {
+    return rate(bytes.get());
+  }
+
+  private double rate(long count) {
+    long elapsed = nanos.get();
+    return elapsed == 0 ? 0 : count * 1e9 / elapsed;
+  }
+
+  @Override
+  public String toString() {
+    return entries() + " entries, " + bytes() + " bytes in " + time(TimeUnit.MILLISECONDS)
+        + " ms (" + (long) entriesPerSecond() + " entries/s, " + (long) bytesPerSecond()
+        + " bytes/s)";
+  }
+}
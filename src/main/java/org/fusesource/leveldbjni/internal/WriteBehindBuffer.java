@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2011, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *    * Neither the name of FuseSource Corp. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.fusesource.leveldbjni.internal;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.iq80.leveldb.DBException;
+import org.iq80.leveldb.WriteOptions;
+
+/**
+ * Keeps the latest put or delete of every key on the java heap and writes
+ * them to leveldb later, as one batch, so that a key overwritten many times in
+ * between is only written once.  The pending writes are written when they hold
+ * more than maxBytes bytes, every flush interval, on {@link #flush()} and on
+ * {@link #close()}.  Writes still pending are lost if the process dies, so the
+ * flush interval is the durability window.
+ *
+ * <p>{@link #get(byte[])} sees the pending writes, iterators and reads made
+ * directly on the database do not.  While flushes succeed, at most twice
+ * maxBytes bytes of writes are held at once: a write which takes the pending
+ * writes over the bound writes them itself, waiting for an earlier flush to
+ * finish first.</p>
+ */
+public class WriteBehindBuffer {
+
+  // marks a pending delete
+  private static final byte[] DELETED = new byte[0];
+  // rough per entry cost of the map on the heap
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private final JniDB db;
+  private final long maxBytes;
+  private final WriteOptions options;
+  private final ScheduledExecutorService flusher;
+  private final Object flushLock = new Object();
+  private volatile Map<Key, byte[]> pending = new ConcurrentHashMap<Key, byte[]>();
+  private volatile Map<Key, byte[]> flushing;
+  private long pendingBytes;
+  private JniHeapWriteBatch batch;
+  private boolean closed;
+
+  WriteBehindBuffer(JniDB db, long maxBytes, long flushInterval, TimeUnit unit,
+                    WriteOptions options) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+    if (flushInterval < 1) {
+      throw new IllegalArgumentException("flushInterval must be positive");
+    }
+    this.db = db;
+    this.maxBytes = maxBytes;
+    this.options = options;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread rc = new Thread(task, "leveldbjni write behind");
+        rc.setDaemon(true);
+        return rc;
+      }
+    });
+    this.flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          // the writes were put back, the next flush tries again
+        }
+      }
+    }, flushInterval, flushInterval, unit);
+  }
+
+  /**
+   * Buffers the put.  If it takes the pending writes over maxBytes they are
+   * flushed by this call, but a failure of that flush is not thrown: the put
+   * has been buffered either way, and stays pending until a later flush
+   * writes it.  Call {@link #flush()} to see write failures.
+   */
+  public void put(byte[] key, byte[] value) {
+    NativeDB.checkArgNotNull(key, "key");
+    NativeDB.checkArgNotNull(value, "value");
+    update(key, value);
+  }
+
+  /**
+   * Buffers the delete, flushing like {@link #put(byte[], byte[])} does.
+   */
+  public void delete(byte[] key) {
+    NativeDB.checkArgNotNull(key, "key");
+    update(key, DELETED);
+  }
+
+  /**
+   * @return the value of the key, taking the pending writes into account
+   */
+  public byte[] get(byte[] key) {
+    NativeDB.checkArgNotNull(key, "key");
+    Key wrapped = new Key(key);
+    byte[] rc = pending.get(wrapped);
+    if (rc == null) {
+      Map<Key, byte[]> inFlight = flushing;
+      if (inFlight != null) {
+        rc = inFlight.get(wrapped);
+      }
+    }
+    if (rc == null) {
+      return db.get(key);
+    }
+    return rc == DELETED ? null : rc.clone();
+  }
+
+  /**
+   * @return the number of bytes of writes waiting to be flushed
+   */
+  public synchronized long pendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * Writes every pending write to leveldb, returning once they have been written.
+   */
+  public void flush() throws DBException {
+    synchronized (flushLock) {
+      Map<Key, byte[]> writes;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        writes = pending;
+        // readers look in pending first, so publish the writes as in flight
+        // before taking them out of pending
+        flushing = writes;
+        pending = new ConcurrentHashMap<Key, byte[]>();
+        pendingBytes = 0;
+      }
+      try {
+        if (batch == null) {
+          batch = db.createHeapWriteBatch();
+        }
+        for (Map.Entry<Key, byte[]> entry : writes.entrySet()) {
+          if (entry.getValue() == DELETED) {
+            batch.delete(entry.getKey().data);
+          } else {
+            batch.put(entry.getKey().data, entry.getValue());
+          }
+        }
+        db.write(batch, options);
+      } catch (RuntimeException e) {
+        restore(writes);
+        throw e;
+      } finally {
+        flushing = null;
+        if (batch != null) {
+          batch.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes the pending writes and stops flushing in the background.  If the
+   * flush fails the buffer stays open, so that closing it can be retried.
+   */
+  public void close() throws DBException {
+    synchronized (flushLock) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        // turn writes away while the last flush runs
+        closed = true;
+      }
+      try {
+        flush();
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          closed = false;
+        }
+        throw e;
+      }
+      flusher.shutdown();
+      if (batch != null) {
+        batch.close();
+        batch = null;
+      }
+    }
+    db.closed(this);
+  }
+
+  private void update(byte[] key, byte[] value) {
+    boolean full;
+    synchronized (this) {
+      if (closed) {
+        throw new DBException("Closed");
+      }
+      byte[] previous = pending.put(new Key(key.clone()), value == DELETED ? value : value.clone());
+      pendingBytes += value.length;
+      if (previous == null) {
+        pendingBytes += key.length + ENTRY_OVERHEAD;
+      } else {
+        pendingBytes -= previous.length;
+      }
+      full = pendingBytes >= maxBytes;
+    }
+    if (full) {
+      try {
+        flush();
+      } catch (RuntimeException e) {
+        // the writes were put back, including this one, so it is not lost
+      }
+    }
+  }
+
+  /**
+   * Puts back the writes of a failed flush, unless they have been overwritten since.
+   */
+  private synchronized void restore(Map<Key, byte[]> writes) {
+    for (Map.Entry<Key, byte[]> entry : writes.entrySet()) {
+      if (pending.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+        pendingBytes += entry.getKey().data.length + entry.getValue().length + ENTRY_OVERHEAD;
+      }
+    }
+  }
+
+  private static final class Key {
+    final byte[] data;
+    final int hash;
+
+    Key(byte[] data) {
+      this.data = data;
+      this.hash = Arrays.hashCode(data);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && Arrays.equals(data, ((Key) other).data);
+    }
+  }
+}
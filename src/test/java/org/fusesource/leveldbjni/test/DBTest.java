@@ -35,8 +35,10 @@ import static org.fusesource.leveldbjni.JniDBFactory.asString;
 import static org.fusesource.leveldbjni.JniDBFactory.bytes;
 import static org.fusesource.leveldbjni.JniDBFactory.factory;
 
+import com.sun.management.ThreadMXBean;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -47,9 +49,41 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import junit.framework.TestCase;
 import org.fusesource.leveldbjni.JniDBFactory;
+import org.fusesource.leveldbjni.internal.ConditionalWriteBatch;
+import org.fusesource.leveldbjni.internal.GroupCommitWriter;
+import org.fusesource.leveldbjni.internal.IteratorPool;
 import org.fusesource.leveldbjni.internal.JniDB;
+import org.fusesource.leveldbjni.internal.JniDBCursor;
+import org.fusesource.leveldbjni.internal.JniDBIterator;
+import org.fusesource.leveldbjni.internal.JniHeapWriteBatch;
+import org.fusesource.leveldbjni.internal.JniKeyIterator;
+import org.fusesource.leveldbjni.internal.Merge;
+import org.fusesource.leveldbjni.internal.NativeBuffer;
+import org.fusesource.leveldbjni.internal.NativeDB;
+import org.fusesource.leveldbjni.internal.NativeIterator;
+import org.fusesource.leveldbjni.internal.NativeOptions;
+import org.fusesource.leveldbjni.internal.NativeReadOptions;
+import org.fusesource.leveldbjni.internal.NativeSlabAllocator;
+import org.fusesource.leveldbjni.internal.NativeWriteBatch;
+import org.fusesource.leveldbjni.internal.NativeWriteOptions;
+import org.fusesource.leveldbjni.internal.ParallelScan;
+import org.fusesource.leveldbjni.internal.ScanFilter;
+import org.fusesource.leveldbjni.internal.ScanPage;
+import org.fusesource.leveldbjni.internal.ScanStatistics;
+import org.fusesource.leveldbjni.internal.WriteBehindBuffer;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBComparator;
 import org.iq80.leveldb.DBException;
@@ -62,6 +96,8 @@ import org.iq80.leveldb.WriteBatch;
 import org.iq80.leveldb.WriteOptions;
 import org.junit.Assert;
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 /**
  * A Unit test for the DB class implementation.
@@ -1018,9 +1054,27 @@ public class DBTest extends TestCase {
     private static byte[] toByteArray(int value) {
         return new byte[]{(byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value};
     }
+
     public static int fromByteArray(byte[] bytes) {
         return bytes[0] << 24 | (bytes[1] & 255) << 16 | (bytes[2] & 255) << 8 | bytes[3] & 255;
     }
+
+    /**
+     * @return the bean counting the bytes allocated by each thread, or null if the JVM cannot.
+     * DBTest runs as a junit 3 TestCase, where a failed assumption is an error, so tests
+     * depending on it return early instead.
+     */
+    private static ThreadMXBean allocationCounter() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) {
+            return null;
+        }
+        ThreadMXBean rc = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!rc.isThreadAllocatedMemorySupported() || !rc.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        return rc;
+    }
+
     @Test
     public  void testIteratorNegative2() throws IOException {
 
@@ -1067,6 +1121,7 @@ public class DBTest extends TestCase {
         iterable4.close();
         database.close();
     }
+
     @Test
     public void testReuseLogs() throws IOException {
         Options options = new Options().createIfMissing(true).reuseLogs(true);
@@ -1079,6 +1134,7 @@ public class DBTest extends TestCase {
             reopenDb.get("halibobo".getBytes(StandardCharsets.UTF_8))));
         reopenDb.close();
     }
+
     @Test
     public void testMaxFileSize() throws IOException {
         Options options = new Options().createIfMissing(true).maxFileSize(4 * 1024 * 1024);
@@ -1090,4 +1146,1252 @@ public class DBTest extends TestCase {
         }
         db.close();
     }
+
+    @Test
+    public void testByteBufferCRUD() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+
+        ByteBuffer key = ByteBuffer.allocateDirect(16);
+        ByteBuffer value = ByteBuffer.allocateDirect(16);
+        key.put(bytes("Tampa")).flip();
+        value.put(bytes("green")).flip();
+        db.put(key, value);
+        assertEquals(key.limit(), key.position());
+        assertEquals(value.limit(), value.position());
+        assertEquals(bytes("green"), db.get(bytes("Tampa")));
+
+        // heap buffers take the copying path
+        db.put(ByteBuffer.wrap(bytes("London")), ByteBuffer.wrap(bytes("red")));
+        assertEquals(bytes("red"), db.get(bytes("London")));
+
+        key.clear();
+        key.put(bytes("Tampa")).flip();
+        ByteBuffer out = ByteBuffer.allocateDirect(16);
+        assertEquals(5, db.get(key, out));
+        byte[] actual = new byte[out.remaining()];
+        out.get(actual);
+        assertEquals(bytes("green"), actual);
+
+        // a value larger than the buffer is truncated, the full length is returned
+        ByteBuffer small = ByteBuffer.allocate(2);
+        assertEquals(3, db.get(ByteBuffer.wrap(bytes("London")), small));
+        assertEquals(2, small.remaining());
+        assertEquals('r', small.get(0));
+
+        key.clear();
+        key.put(bytes("Tampa")).flip();
+        db.delete(key);
+        assertNull(db.get(bytes("Tampa")));
+        assertEquals(JniDB.NOT_FOUND, db.get(ByteBuffer.wrap(bytes("Tampa")), out));
+
+        db.close();
+    }
+
+    @Test
+    public void testMultiGet() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+
+        db.put(bytes("Tampa"), bytes("green"));
+        db.put(bytes("London"), bytes("red"));
+        db.put(bytes("New York"), bytes("blue"));
+
+        List<byte[]> values = db.multiGet(Arrays.asList(
+            bytes("Tampa"), bytes("Denver"), bytes("London"), bytes(""), bytes("New York")));
+        assertEquals(5, values.size());
+        assertEquals(bytes("green"), values.get(0));
+        assertNull(values.get(1));
+        assertEquals(bytes("red"), values.get(2));
+        assertNull(values.get(3));
+        assertEquals(bytes("blue"), values.get(4));
+
+        ReadOptions ro = new ReadOptions().snapshot(db.getSnapshot());
+        db.put(bytes("Denver"), bytes("orange"));
+        assertNull(db.multiGet(Collections.singletonList(bytes("Denver")), ro).get(0));
+        ro.snapshot().close();
+        assertEquals(bytes("orange"), db.multiGet(Collections.singletonList(bytes("Denver"))).get(0));
+        assertTrue(db.multiGet(Collections.<byte[]>emptyList()).isEmpty());
+
+        db.close();
+    }
+
+    @Test
+    public void testStatusAllocationFree() throws IOException {
+        ThreadMXBean threads = allocationCounter();
+        if (threads == null) {
+            return;
+        }
+        File path = getTestDirectory(getName());
+        NativeDB db = NativeDB.open(new NativeOptions().createIfMissing(true), path);
+        NativeWriteOptions wo = new NativeWriteOptions();
+        NativeWriteBatch batch = new NativeWriteBatch();
+        for (int i = 0; i < 100; i++) {
+            batch.put(bytes("key" + i), bytes("value" + i));
+        }
+        long thread = Thread.currentThread().getId();
+        int ops = 20000;
+
+        db.write(wo, batch);
+        NativeIterator iterator = db.iterator(new NativeReadOptions());
+        for (int round = 0; round < 2; round++) {
+            int steps = 0;
+            long before = threads.getThreadAllocatedBytes(thread);
+            while (steps < ops) {
+                for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                    steps++;
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            // the first round warms up, the second must not allocate per op
+            if (round == 1) {
+                assertTrue("next allocated " + allocated + " bytes", allocated < steps);
+            }
+        }
+        iterator.delete();
+
+        for (int round = 0; round < 2; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < ops / 100; i++) {
+                db.write(wo, batch);
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            if (round == 1) {
+                assertTrue("write allocated " + allocated + " bytes", allocated < ops / 100);
+            }
+        }
+        batch.delete();
+        db.delete();
+    }
+
+    @Test
+    public void testStatusCodes() throws IOException {
+        File path = getTestDirectory(getName());
+        NativeDB.open(new NativeOptions().createIfMissing(true), path).delete();
+        try {
+            NativeDB.open(new NativeOptions().errorIfExists(true), path);
+            fail("Expected exception.");
+        } catch (NativeDB.DBException e) {
+            assertEquals(4, e.code());
+            assertTrue(e.getMessage().startsWith("Invalid argument"));
+            assertFalse(e.isNotFound());
+        }
+    }
+
+    @Test
+    public void testArenaPayloadSizes() throws IOException {
+        File path = getTestDirectory(getName());
+        DB db = factory.open(path, new Options().createIfMissing(true));
+        Random r = new Random(0);
+        // grows the per-thread arena, then overflows it with one-off allocations
+        int[] sizes = {0, 1, 100, 5000, 100 * 1024, 300 * 1024, 10};
+        for (int size : sizes) {
+            byte[] value = new byte[size];
+            r.nextBytes(value);
+            db.put(bytes("key" + size), value);
+            WriteBatch batch = db.createWriteBatch();
+            batch.put(bytes("batch" + size), value);
+            db.write(batch);
+            batch.close();
+        }
+        for (int size : sizes) {
+            assertEquals(size, db.get(bytes("key" + size)).length);
+            assertEquals(db.get(bytes("key" + size)), db.get(bytes("batch" + size)));
+        }
+        DBIterator iterator = db.iterator();
+        iterator.seek(bytes("key5000"));
+        assertEquals(bytes("key5000"), iterator.key());
+        iterator.close();
+        db.close();
+    }
+
+    @Test
+    public void testSlabAllocatorCrossThread() throws Exception {
+        final List<NativeBuffer> buffers = new ArrayList<NativeBuffer>();
+        for (int i = 0; i < 64; i++) {
+            NativeBuffer buffer = NativeBuffer.create(bytes("value" + i));
+            assertEquals(bytes("value" + i), buffer.toByteArray());
+            buffers.add(buffer);
+        }
+        int inUse = 0;
+        for (NativeSlabAllocator.Occupancy occupancy : NativeSlabAllocator.occupancy()) {
+            inUse += occupancy.inUse();
+        }
+        assertTrue(inUse >= 64);
+
+        // release on another thread, the blocks go back to the shared free lists
+        Thread releaser = new Thread(new Runnable() {
+            public void run() {
+                for (NativeBuffer buffer : buffers) {
+                    buffer.delete();
+                }
+            }
+        });
+        releaser.start();
+        releaser.join();
+        assertTrue(NativeSlabAllocator.retained() > 0);
+        assertTrue(NativeSlabAllocator.retained() <= NativeSlabAllocator.maxRetained());
+
+        NativeBuffer reused = NativeBuffer.create(bytes("reused"));
+        assertEquals(bytes("reused"), reused.toByteArray());
+        reused.delete();
+
+        long max = NativeSlabAllocator.maxRetained();
+        NativeSlabAllocator.trim();
+        NativeSlabAllocator.maxRetained(0);
+        try {
+            NativeBuffer.create(bytes("dropped")).delete();
+            assertEquals(0, NativeSlabAllocator.retained());
+        } finally {
+            NativeSlabAllocator.maxRetained(max);
+        }
+    }
+
+    @Test
+    public void testPrefetchIterator() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 100; i++) {
+            db.put(bytes(String.format("key%03d", i)), bytes("value" + i));
+        }
+
+        JniDBIterator it = db.iterator(new ReadOptions(), 7, 64);
+        it.seekToFirst();
+        int i = 0;
+        while (it.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = it.next();
+            assertEquals(bytes(String.format("key%03d", i)), entry.getKey());
+            assertEquals(bytes("value" + i), entry.getValue());
+            i++;
+        }
+        assertEquals(100, i);
+
+        it.seek(bytes("key050"));
+        assertEquals(bytes("key050"), it.key());
+        it.next();
+        it.next();
+        assertEquals(bytes("key052"), it.key());
+        assertEquals(bytes("key052"), it.prev().getKey());
+        assertEquals(bytes("key051"), it.key());
+        assertEquals(bytes("value51"), it.value());
+        assertEquals(bytes("key051"), it.next().getKey());
+
+        it.seekToLast();
+        assertEquals(bytes("key099"), it.next().getKey());
+        assertFalse(it.Valid());
+        it.close();
+        db.close();
+    }
+
+    @Test
+    public void testBoundedIterators() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        String[] keys = {"a", "user1", "user1/s1", "user1/s2", "user2", "user2/s1", "z"};
+        for (String key : keys) {
+            db.put(bytes(key), bytes(key));
+        }
+
+        JniDBIterator it = db.prefixIterator(bytes("user1/"));
+        List<String> found = new ArrayList<String>();
+        for (it.seekToFirst(); it.hasNext(); ) {
+            found.add(asString(it.next().getKey()));
+        }
+        assertEquals(Arrays.asList("user1/s1", "user1/s2"), found);
+        it.seekToLast();
+        assertEquals("user1/s2", asString(it.key()));
+        it.prev();
+        it.prev();
+        assertFalse(it.Valid());
+        it.close();
+
+        it = db.iterator(new ReadOptions(), bytes("user1"), bytes("user2"));
+        it.seek(bytes("a"));
+        assertEquals("user1", asString(it.key()));
+        it.seekToLast();
+        assertEquals("user1/s2", asString(it.key()));
+        it.prefetch(2, 1024);
+        found.clear();
+        for (it.seekToFirst(); it.hasNext(); ) {
+            found.add(asString(it.next().getKey()));
+        }
+        assertEquals(Arrays.asList("user1", "user1/s1", "user1/s2"), found);
+        it.close();
+
+        it = db.iterator(new ReadOptions(), null, bytes("b"));
+        it.seekToLast();
+        assertEquals("a", asString(it.key()));
+        it.close();
+
+        it = db.prefixIterator(new byte[] {(byte) 0xFF});
+        it.seekToFirst();
+        assertFalse(it.Valid());
+        it.seekToLast();
+        assertFalse(it.Valid());
+        it.close();
+        db.close();
+    }
+
+    @Test
+    public void testKeyIterator() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        db.put(bytes("a"), new byte[4096]);
+        db.put(bytes("b"), new byte[0]);
+        db.put(bytes("c"), new byte[10]);
+
+        JniKeyIterator it = db.keyIterator();
+        it.seekToFirst();
+        assertEquals(4096, it.valueSize());
+        assertEquals(bytes("a"), it.next());
+        assertEquals(0, it.valueSize());
+        assertEquals(bytes("b"), it.next());
+        assertEquals(bytes("c"), it.next());
+        assertFalse(it.hasNext());
+        it.seekToLast();
+        assertEquals(bytes("c"), it.prev());
+        assertEquals(bytes("b"), it.key());
+        it.close();
+
+        JniDBIterator entries = db.iterator(new ReadOptions(), 2, 1 << 20);
+        entries.seekToFirst();
+        assertEquals(4096, entries.valueSize());
+        entries.next();
+        assertEquals(0, entries.valueSize());
+        entries.close();
+        db.close();
+    }
+
+    @Test
+    public void testCursor() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 100; i++) {
+            db.put(bytes(String.format("key%03d", i)), bytes("value" + i));
+        }
+        db.put(bytes("large"), new byte[1000]);
+
+        JniDBCursor cursor = db.cursor();
+        JniDBCursor.Holder key = new JniDBCursor.Holder(4);
+        JniDBCursor.Holder value = new JniDBCursor.Holder(4);
+        cursor.seek(bytes("key042"));
+        assertEquals(6, cursor.keyLength());
+        assertEquals(7, cursor.valueLength());
+        assertEquals(bytes("key042"), cursor.key(key).toByteArray());
+        assertEquals(bytes("value42"), cursor.value(value).toByteArray());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+        assertEquals(7, cursor.value(buffer));
+        assertEquals(5, buffer.remaining());
+        byte[] copy = new byte[5];
+        buffer.get(copy);
+        assertEquals(bytes("value"), copy);
+
+        cursor.seek(ByteBuffer.wrap(bytes("key099")));
+        assertTrue(cursor.next());
+        assertEquals(1000, cursor.value(value).length());
+        assertFalse(cursor.next());
+        try {
+            cursor.keyLength();
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException expected) {
+        }
+
+        ThreadMXBean threads = allocationCounter();
+        if (threads == null) {
+            cursor.close();
+            db.close();
+            return;
+        }
+        long thread = Thread.currentThread().getId();
+        ByteBuffer direct = ByteBuffer.allocateDirect(2048);
+        int rounds = 200;
+        long entries = 0;
+        long before = 0;
+        for (int round = 0; round < rounds; round++) {
+            if (round == rounds / 2) {
+                before = threads.getThreadAllocatedBytes(thread);
+                entries = 0;
+            }
+            for (cursor.seekToFirst(); cursor.isValid(); cursor.next()) {
+                cursor.key(key);
+                direct.clear();
+                cursor.value(direct);
+                entries++;
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue("allocated " + allocated + " bytes for " + entries + " entries",
+            allocated < entries);
+        cursor.close();
+        db.close();
+    }
+
+    @Test
+    public void testSeekForPrevComparator() throws IOException {
+        Options options = new Options().createIfMissing(true);
+        options.comparator(new DBComparator() {
+            public int compare(byte[] key1, byte[] key2) {
+                return asString(key1).compareToIgnoreCase(asString(key2));
+            }
+
+            public String name() {
+                return getName();
+            }
+
+            public byte[] findShortestSeparator(byte[] start, byte[] limit) {
+                return start;
+            }
+
+            public byte[] findShortSuccessor(byte[] key) {
+                return key;
+            }
+        });
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, options);
+        db.put(bytes("apple"), bytes("1"));
+        db.put(bytes("Banana"), bytes("2"));
+        db.put(bytes("cherry"), bytes("3"));
+
+        DBIterator it = db.iterator();
+        it.seekForPrev(bytes("BANANA"));
+        assertEquals("Banana", asString(it.key()));
+        it.seekForPrev(bytes("b"));
+        assertEquals("apple", asString(it.key()));
+        it.seekForPrev(bytes("zebra"));
+        assertEquals("cherry", asString(it.key()));
+        it.seekForPrev(bytes("a"));
+        assertFalse(it.Valid());
+        it.close();
+
+        JniDBCursor cursor = db.cursor();
+        assertTrue(cursor.seekForPrev(bytes("CHERRY")));
+        cursor.close();
+
+        JniDBIterator bounded = db.iterator(new ReadOptions(), bytes("b"), bytes("c"));
+        bounded.seekForPrev(bytes("zebra"));
+        assertEquals("Banana", asString(bounded.key()));
+        bounded.seekForPrev(bytes("apple"));
+        assertFalse(bounded.Valid());
+        bounded.close();
+        db.close();
+    }
+
+    @Test
+    public void testParallelScan() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        Random random = new Random(0);
+        byte[] value = new byte[200];
+        for (int i = 0; i < 20000; i++) {
+            random.nextBytes(value);
+            db.put(bytes(String.format("key%05d", i)), value);
+        }
+        db.compactRange(null, null);
+
+        final AtomicInteger count = new AtomicInteger();
+        ParallelScan scan = db.parallelScan(null, null).partitions(4);
+        scan.forEach(new ParallelScan.EntryConsumer() {
+            public void accept(int partition, byte[] key, byte[] value) {
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(20000, count.get());
+
+        List<Integer> sizes = scan.mapPartitions(new ParallelScan.PartitionFunction<Integer>() {
+            public Integer apply(int partition, JniDBIterator entries) {
+                int rc = 0;
+                for (; entries.hasNext(); entries.next()) {
+                    rc++;
+                }
+                return rc;
+            }
+        });
+        assertTrue("partitions: " + sizes, sizes.size() > 1);
+        for (int size : sizes) {
+            assertTrue("partitions: " + sizes, size > 1000);
+        }
+
+        List<Map.Entry<byte[], byte[]>> entries = db.parallelScan(bytes("key01000"), bytes("key02000"))
+            .partitions(3).collect(Collectors.<Map.Entry<byte[], byte[]>>toList());
+        assertEquals(1000, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(bytes(String.format("key%05d", 1000 + i)), entries.get(i).getKey());
+        }
+        db.close();
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 20000; i++) {
+            db.put(bytes(String.format("key%05d", i)), bytes("value" + i));
+        }
+        db.compactRange(null, null);
+
+        Stream<Map.Entry<byte[], byte[]>> stream =
+            db.stream(new Range(bytes("key00100"), bytes("key00200")));
+        List<Map.Entry<byte[], byte[]>> entries;
+        try {
+            entries = stream.collect(Collectors.<Map.Entry<byte[], byte[]>>toList());
+            assertEquals(100, entries.size());
+            // read after the iterator has moved on
+            assertEquals(bytes("value150"), entries.get(50).getValue());
+        } finally {
+            stream.close();
+        }
+        // values read before the stream was closed stay available, others do not
+        Map.Entry<byte[], byte[]> read = entries.get(50);
+        assertEquals(bytes("value150"), read.getValue());
+        try {
+            entries.get(10).getValue();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+
+        stream = db.stream(null);
+        try {
+            assertEquals(20000, stream.parallel().count());
+        } finally {
+            stream.close();
+        }
+
+        stream = db.stream(null);
+        try {
+            List<String> values = stream
+                .filter(e -> asString(e.getKey()).endsWith("7"))
+                .limit(2)
+                .map(e -> asString(e.getValue()))
+                .collect(Collectors.<String>toList());
+            assertEquals(Arrays.asList("value7", "value17"), values);
+        } finally {
+            stream.close();
+        }
+
+        db.put(bytes("key00001"), bytes("changed"));
+        stream = db.stream(null).parallel();
+        try {
+            long sum = stream.mapToLong(e -> e.getValue().length).sum();
+            assertTrue(sum > 20000 * 6);
+        } finally {
+            stream.close();
+        }
+        db.close();
+    }
+
+    @Test
+    public void testScanFilter() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 100; i++) {
+            db.put(bytes(String.format("user%d/%03d", i % 2, i)),
+                bytes((i % 10 == 0 ? "ERROR " : "INFO ") + i));
+        }
+
+        ScanFilter filter = ScanFilter.valueContains(bytes("ERROR"))
+            .and(ScanFilter.keyPrefix(bytes("user0/")));
+        JniDBIterator it = db.iterator(new ReadOptions(), filter);
+        List<String> found = new ArrayList<String>();
+        for (it.seekToFirst(); it.hasNext(); ) {
+            found.add(asString(it.next().getKey()));
+        }
+        assertEquals(10, found.size());
+        assertEquals("user0/000", found.get(0));
+        assertEquals("user0/090", found.get(9));
+        it.seekToLast();
+        assertEquals("user0/090", asString(it.prev().getKey()));
+        assertEquals("user0/080", asString(it.key()));
+
+        it.filter(ScanFilter.keyBytesAt(7, bytes("5"))
+            .and(ScanFilter.valueLength(0, 7))
+            .and(ScanFilter.keyRange(null, bytes("user1")).negate()));
+        it.prefetch(3, 1024);
+        found.clear();
+        for (it.seekToFirst(); it.hasNext(); ) {
+            found.add(asString(it.next().getKey()));
+        }
+        assertEquals(Arrays.asList("user1/051", "user1/053", "user1/055", "user1/057", "user1/059"),
+            found);
+        it.close();
+
+        it = db.iterator(new ReadOptions(), bytes("user1/"), null)
+            .filter(ScanFilter.valuePrefix(bytes("ERROR")).or(ScanFilter.keyContains(bytes("99"))));
+        found.clear();
+        for (it.seekToFirst(); it.hasNext(); ) {
+            found.add(asString(it.next().getKey()));
+        }
+        assertEquals(Arrays.asList("user1/099"), found);
+        it.close();
+        db.close();
+    }
+
+    @Test
+    public void testCountAndTotalBytes() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 100; i++) {
+            db.put(bytes(String.format("key%03d", i)), new byte[i]);
+        }
+
+        assertEquals(100, db.count(null, null));
+        assertEquals(10, db.count(bytes("key010"), bytes("key020")));
+        assertEquals(5, db.count(null, null, 5, new ReadOptions()));
+        assertEquals(0, db.count(bytes("x"), null));
+
+        long expected = 0;
+        for (int i = 10; i < 20; i++) {
+            expected += 6 + i;
+        }
+        assertEquals(expected, db.totalBytes(bytes("key010"), bytes("key020")));
+        assertEquals(6 + 6 + 1, db.totalBytes(null, null, 2, new ReadOptions()));
+
+        ReadOptions ro = new ReadOptions().snapshot(db.getSnapshot());
+        db.put(bytes("key100"), new byte[0]);
+        assertEquals(100, db.count(null, null, Long.MAX_VALUE, ro));
+        assertEquals(101, db.count(null, null));
+        ro.snapshot().close();
+        db.close();
+    }
+
+    @Test
+    public void testScanPage() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 25; i++) {
+            db.put(bytes(String.format("key%02d", i)), bytes("value" + i));
+        }
+
+        List<String> keys = new ArrayList<String>();
+        byte[] start = bytes("key03");
+        int pages = 0;
+        do {
+            ScanPage page = db.scanPage(start, bytes("key20"), 5, 1 << 20);
+            for (int i = 0; i < page.size(); i++) {
+                keys.add(asString(page.key(i)));
+                assertEquals(bytes("value" + (keys.size() + 2)), page.value(i));
+            }
+            start = page.continuation();
+            pages++;
+        } while (start != null);
+        assertEquals(17, keys.size());
+        assertEquals("key19", keys.get(16));
+        assertEquals(4, pages);
+
+        ScanPage page = db.scanPage(null, null, 100, 12);
+        assertEquals(2, page.size());
+        assertEquals(bytes("key02"), page.continuation());
+        ByteBuffer value = page.valueBuffer(1);
+        assertEquals(6, value.remaining());
+        assertEquals((byte) 'v', value.get(0));
+        assertEquals(2 * 5 + 2 * 6, page.buffer().remaining());
+        db.close();
+    }
+
+    @Test
+    public void testScanPublisher() throws Exception {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 50; i++) {
+            db.put(bytes(String.format("key%02d", i)), bytes("value" + i));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final CountDownLatch completed = new CountDownLatch(1);
+            db.publisher(bytes("key10"), bytes("key30"), new ReadOptions(), executor)
+                .subscribe(new Subscriber<Map.Entry<byte[], byte[]>>() {
+                    private Subscription subscription;
+
+                    public void onSubscribe(Subscription s) {
+                        subscription = s;
+                        s.request(3);
+                    }
+
+                    public void onNext(Map.Entry<byte[], byte[]> entry) {
+                        keys.add(asString(entry.getKey()));
+                        if (keys.size() % 3 == 0) {
+                            subscription.request(3);
+                        }
+                    }
+
+                    public void onError(Throwable t) {
+                        error.set(t);
+                        completed.countDown();
+                    }
+
+                    public void onComplete() {
+                        completed.countDown();
+                    }
+                });
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            assertNull(error.get());
+            assertEquals(20, keys.size());
+            assertEquals("key10", keys.get(0));
+            assertEquals("key29", keys.get(19));
+
+            final AtomicInteger received = new AtomicInteger();
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            final AtomicBoolean signalled = new AtomicBoolean();
+            db.publisher(null, null, new ReadOptions(), executor)
+                .subscribe(new Subscriber<Map.Entry<byte[], byte[]>>() {
+                    private Subscription subscription;
+
+                    public void onSubscribe(Subscription s) {
+                        subscription = s;
+                        s.request(Long.MAX_VALUE);
+                    }
+
+                    public void onNext(Map.Entry<byte[], byte[]> entry) {
+                        if (received.incrementAndGet() == 5) {
+                            subscription.cancel();
+                            cancelled.countDown();
+                        }
+                    }
+
+                    public void onError(Throwable t) {
+                        error.set(t);
+                        signalled.set(true);
+                    }
+
+                    public void onComplete() {
+                        signalled.set(true);
+                    }
+                });
+            assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(5, received.get());
+            // cancelled subscriptions neither complete nor fail
+            assertFalse(signalled.get());
+            assertNull(error.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        db.close();
+    }
+
+    @Test
+    public void testIteratorRefreshAndPool() throws Exception {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        db.put(bytes("a"), bytes("1"));
+        db.put(bytes("c"), bytes("3"));
+
+        JniDBIterator it = (JniDBIterator) db.iterator();
+        it.seek(bytes("a"));
+        db.put(bytes("b"), bytes("2"));
+        db.put(bytes("a"), bytes("changed"));
+        assertEquals(bytes("1"), it.value());
+        it.refresh();
+        assertEquals(bytes("a"), it.key());
+        assertEquals(bytes("changed"), it.value());
+        it.next();
+        assertEquals(bytes("b"), it.key());
+        db.delete(bytes("b"));
+        it.refresh();
+        assertEquals(bytes("c"), it.key());
+        it.close();
+
+        IteratorPool pool = db.iteratorPool(2, 0);
+        it = pool.iterator();
+        it.seekToFirst();
+        assertEquals(bytes("a"), it.key());
+        it.close();
+        assertEquals(1, pool.idle());
+
+        db.put(bytes("0"), bytes("new"));
+        Thread.sleep(1);
+        it = pool.iterator();
+        assertEquals(0, pool.idle());
+        it.seekToFirst();
+        assertEquals(bytes("0"), it.key());
+        it.close();
+
+        pool = db.iteratorPool(1, 60000);
+        JniDBIterator first = pool.iterator();
+        JniDBIterator second = pool.iterator();
+        first.close();
+        second.close();
+        assertEquals(1, pool.idle());
+        db.put(bytes("00"), bytes("hidden"));
+        it = pool.iterator();
+        it.seek(bytes("00"));
+        assertEquals(bytes("a"), it.key());
+        it.close();
+
+        // closing twice must not hand the same native iterator out twice
+        it.close();
+        assertEquals(1, pool.idle());
+        first = pool.iterator();
+        second = pool.iterator();
+        first.seekToFirst();
+        second.seekToLast();
+        assertEquals(bytes("0"), first.key());
+        assertEquals(bytes("c"), second.key());
+        first.close();
+        second.close();
+
+        // a released iterator cannot reach the native iterator it handed back
+        first = pool.iterator();
+        first.close();
+        second = pool.iterator();
+        second.seekToLast();
+        try {
+            first.seekToFirst();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            first.hasNext();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(bytes("c"), second.key());
+        second.close();
+        db.close();
+    }
+
+    @Test
+    public void testBulkScan() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 3000; i++) {
+            db.put(bytes(String.format("key%04d", i)), new byte[10]);
+        }
+
+        JniDBIterator it = db.bulkScan(bytes("key1000"), bytes("key3000"));
+        int count = 0;
+        for (it.seekToFirst(); it.hasNext(); it.next()) {
+            count++;
+        }
+        it.close();
+        assertEquals(2000, count);
+        ScanStatistics statistics = it.statistics();
+        assertEquals(2000, statistics.entries());
+        assertEquals(2000 * (7 + 10), statistics.bytes());
+        assertEquals(2, statistics.batches());
+        assertTrue(statistics.entriesPerSecond() > 0);
+
+        it = db.bulkScan(null, null);
+        for (it.seekToFirst(); it.hasNext(); it.next()) {
+            count++;
+        }
+        it.close();
+        assertEquals(5000, db.bulkScanStatistics().entries());
+        db.close();
+    }
+
+    @Test
+    public void testHeapWriteBatch() throws IOException, DBException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        db.put(bytes("doomed"), bytes("x"));
+
+        JniHeapWriteBatch batch = db.createHeapWriteBatch();
+        WriteBatch reference = db.createWriteBatch();
+        byte[] large = new byte[300];
+        Arrays.fill(large, (byte) 'v');
+        for (int i = 0; i < 1000; i++) {
+            byte[] value = i % 100 == 0 ? large : bytes("value" + i);
+            batch.put(bytes(String.format("key%04d", i)), value);
+            reference.put(bytes(String.format("key%04d", i)), value);
+        }
+        batch.delete(bytes("doomed"));
+        reference.delete(bytes("doomed"));
+        assertEquals(1001, batch.count());
+        assertEquals(reference.approximateSize(), batch.approximateSize());
+        reference.close();
+
+        db.write(batch);
+        assertNull(db.get(bytes("doomed")));
+        assertEquals(bytes("value1"), db.get(bytes("key0001")));
+        assertEquals(large, db.get(bytes("key0100")));
+        assertEquals(1000, db.count(null, null));
+
+        JniHeapWriteBatch other = db.createHeapWriteBatch();
+        other.put(bytes("key0001"), bytes("replaced"));
+        batch.clear();
+        assertEquals(12, batch.approximateSize());
+        batch.delete(bytes("key0002"));
+        batch.append(other);
+        batch.append(other);
+        assertEquals(3, batch.count());
+        db.write(batch);
+        assertEquals(bytes("replaced"), db.get(bytes("key0001")));
+        assertNull(db.get(bytes("key0002")));
+
+        other.close();
+        batch.close();
+        db.close();
+    }
+
+    @Test
+    public void testGroupCommitWriter() throws Exception {
+        File path = getTestDirectory(getName());
+        final JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        final GroupCommitWriter writer = db.groupCommitWriter(2, TimeUnit.MILLISECONDS, 64, 1024 * 1024);
+
+        final int threads = 8;
+        final int writes = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                for (int i = 0; i < writes; i++) {
+                    writer.put(bytes("key" + thread + "-" + i), bytes("value" + i)).join();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+        assertEquals(threads * writes, writer.records());
+        assertTrue(writer.groups() < threads * writes);
+        assertEquals(bytes("value7"), db.get(bytes("key3-7")));
+
+        JniHeapWriteBatch batch = db.createHeapWriteBatch();
+        batch.delete(bytes("key3-7"));
+        batch.put(bytes("batched"), bytes("yes"));
+        CompletableFuture<Void> done = writer.write(batch);
+        batch.clear();
+        writer.delete(bytes("key0-0"));
+        done.join();
+        batch.close();
+
+        writer.close();
+        assertNull(db.get(bytes("key3-7")));
+        assertNull(db.get(bytes("key0-0")));
+        assertEquals(bytes("yes"), db.get(bytes("batched")));
+        try {
+            writer.put(bytes("late"), bytes("write"));
+            fail("Expected a DBException");
+        } catch (DBException e) {
+        }
+        db.close();
+    }
+
+    @Test
+    public void testWriteBehindBuffer() throws Exception {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        db.put(bytes("session"), bytes("old"));
+
+        WriteBehindBuffer buffer = db.writeBehind(1024 * 1024, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 1000; i++) {
+            buffer.put(bytes("counter"), bytes("" + i));
+        }
+        buffer.delete(bytes("session"));
+        assertEquals(bytes("999"), buffer.get(bytes("counter")));
+        assertNull(buffer.get(bytes("session")));
+        assertNull(db.get(bytes("counter")));
+        assertEquals(bytes("old"), db.get(bytes("session")));
+        assertTrue(buffer.pendingBytes() < 1024);
+
+        buffer.flush();
+        assertEquals(0, buffer.pendingBytes());
+        assertEquals(bytes("999"), db.get(bytes("counter")));
+        assertNull(db.get(bytes("session")));
+
+        // crossing the size bound writes the pending writes out
+        WriteBehindBuffer small = db.writeBehind(1024, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 100; i++) {
+            small.put(bytes("key" + i), new byte[100]);
+        }
+        assertTrue(small.pendingBytes() < 1024);
+        assertEquals(100, db.get(bytes("key0")).length);
+
+        // and so does the flush interval
+        WriteBehindBuffer timed = db.writeBehind(1024 * 1024, 10, TimeUnit.MILLISECONDS);
+        timed.put(bytes("timed"), bytes("yes"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (db.get(bytes("timed")) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(bytes("yes"), db.get(bytes("timed")));
+
+        buffer.put(bytes("closing"), bytes("flushed"));
+        db.close();
+        db = (JniDB) factory.open(path, new Options());
+        assertEquals(bytes("flushed"), db.get(bytes("closing")));
+        db.close();
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        File path = getTestDirectory(getName());
+        final JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+
+        assertEquals(5, db.add(bytes("counter"), 5));
+        assertEquals(3, db.add(bytes("counter"), -2));
+        assertEquals(3, Merge.int64(db.get(bytes("counter"))));
+        assertEquals(10, db.max(bytes("high"), 10));
+        assertEquals(10, db.max(bytes("high"), 7));
+        assertEquals(-4, db.min(bytes("low"), -4));
+        assertEquals(-4, db.min(bytes("low"), 0));
+        db.append(bytes("log"), bytes("a"));
+        db.append(bytes("log"), bytes("bc"));
+        assertEquals(bytes("abc"), db.get(bytes("log")));
+        assertTrue(db.setIfAbsent(bytes("once"), bytes("first")));
+        assertFalse(db.setIfAbsent(bytes("once"), bytes("second")));
+        assertEquals(bytes("first"), db.get(bytes("once")));
+
+        byte[][] results = db.merge(Arrays.asList(
+            Merge.add(bytes("counter"), 1),
+            Merge.add(bytes("counter"), 1),
+            Merge.append(bytes("log"), bytes("d")),
+            Merge.setIfAbsent(bytes("once"), bytes("third"))), new WriteOptions());
+        assertEquals(4, Merge.int64(results[0]));
+        assertEquals(5, Merge.int64(results[1]));
+        assertEquals(bytes("abcd"), results[2]);
+        assertEquals(bytes("first"), results[3]);
+        assertEquals(5, Merge.int64(db.get(bytes("counter"))));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    db.add(bytes("contended"), 1);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(8000, Merge.int64(db.get(bytes("contended"))));
+
+        try {
+            db.add(bytes("log"), 1);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        db.close();
+    }
+
+    @Test
+    public void testConditionalWrites() throws Exception {
+        File path = getTestDirectory(getName());
+        final JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+
+        assertNull(db.putIfAbsent(bytes("owner"), bytes("alice")));
+        assertEquals(bytes("alice"), db.putIfAbsent(bytes("owner"), bytes("bob")));
+        assertFalse(db.compareAndSet(bytes("owner"), bytes("bob"), bytes("carol")));
+        assertTrue(db.compareAndSet(bytes("owner"), bytes("alice"), bytes("carol")));
+        assertEquals(bytes("carol"), db.get(bytes("owner")));
+        assertTrue(db.compareAndSet(bytes("fresh"), null, bytes("new")));
+        assertFalse(db.deleteIfEquals(bytes("owner"), bytes("alice")));
+        assertTrue(db.deleteIfEquals(bytes("owner"), bytes("carol")));
+        assertNull(db.get(bytes("owner")));
+
+        ConditionalWriteBatch batch = db.createConditionalWriteBatch()
+            .expect(bytes("fresh"), bytes("new"))
+            .expectAbsent(bytes("owner"))
+            .put(bytes("owner"), bytes("dave"))
+            .delete(bytes("fresh"));
+        assertTrue(db.write(batch));
+        assertEquals(bytes("dave"), db.get(bytes("owner")));
+        assertNull(db.get(bytes("fresh")));
+        // the expectations no longer hold
+        assertFalse(db.write(batch));
+        assertEquals(bytes("dave"), db.get(bytes("owner")));
+
+        db.put(bytes("version"), Merge.int64(0));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    while (true) {
+                        byte[] current = db.get(bytes("version"));
+                        if (db.compareAndSet(bytes("version"), current,
+                                Merge.int64(Merge.int64(current) + 1))) {
+                            break;
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(4000, Merge.int64(db.get(bytes("version"))));
+        db.close();
+    }
+
+    @Test
+    public void testHeapWriteBatchAppend() throws IOException, DBException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+
+        JniHeapWriteBatch heap = db.createHeapWriteBatch();
+        heap.put(bytes("h1"), bytes("heap"));
+        WriteBatch plain = db.createWriteBatch();
+        plain.put(bytes("p1"), bytes("plain"));
+        plain.append(heap);
+        db.write(plain);
+        assertEquals(bytes("heap"), db.get(bytes("h1")));
+        assertEquals(bytes("plain"), db.get(bytes("p1")));
+
+        plain.clear();
+        plain.put(bytes("p2"), bytes("plain"));
+        heap.clear();
+        heap.put(bytes("h2"), bytes("heap"));
+        heap.append(plain);
+        heap.delete(bytes("h1"));
+        assertEquals(3, heap.count());
+        JniHeapWriteBatch other = db.createHeapWriteBatch();
+        other.put(bytes("h3"), bytes("heap"));
+        heap.append(other);
+        assertEquals(4, heap.count());
+
+        GroupCommitWriter writer = db.groupCommitWriter();
+        writer.write(heap).join();
+        writer.close();
+        assertEquals(bytes("heap"), db.get(bytes("h2")));
+        assertEquals(bytes("plain"), db.get(bytes("p2")));
+        assertEquals(bytes("heap"), db.get(bytes("h3")));
+        assertNull(db.get(bytes("h1")));
+
+        // clearing moves the batch back to the heap
+        heap.clear();
+        assertEquals(12, heap.approximateSize());
+        heap.put(bytes("h4"), bytes("heap"));
+        db.write(heap);
+        assertEquals(bytes("heap"), db.get(bytes("h4")));
+
+        other.close();
+        plain.close();
+        heap.close();
+        db.close();
+    }
+
+    @Test
+    public void testCloseResources() throws Exception {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+
+        // resources closed on their own are forgotten by the database
+        db.writeBehind(1024, 1, TimeUnit.HOURS).close();
+        db.groupCommitWriter().close();
+        db.iteratorPool(1, 0).close();
+
+        WriteBehindBuffer buffer = db.writeBehind(1024, 1, TimeUnit.HOURS,
+            new WriteOptions().snapshot(true));
+        buffer.put(bytes("pending"), bytes("kept"));
+        IteratorPool pool = db.iteratorPool(1, 0);
+        try {
+            db.close();
+            fail("Expected the buffer's flush to fail");
+        } catch (UnsupportedOperationException e) {
+        }
+        // the buffer kept its writes and stays open, everything else was closed
+        assertEquals(bytes("kept"), buffer.get(bytes("pending")));
+        buffer.put(bytes("pending"), bytes("still open"));
+        try {
+            pool.iterator();
+            fail("Expected the pool to be closed");
+        } catch (IllegalStateException e) {
+        }
+        assertNull(db.get(bytes("pending")));
+    }
+
+    @Test
+    public void testPrefetchReverse() throws IOException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        for (int i = 0; i < 3000; i++) {
+            db.put(bytes(String.format("key%04d", i)), new byte[10]);
+        }
+
+        JniDBIterator it = db.bulkScan(null, null);
+        it.seekToLast();
+        for (int i = 2999; i > 2899; i--) {
+            assertTrue(it.hasPrev());
+            assertEquals(bytes(String.format("key%04d", i)), it.prev().getKey());
+        }
+        // moving backwards reads from the native iterator, without prefetching
+        assertEquals(0, it.statistics().entries());
+
+        it.seek(bytes("key1000"));
+        assertEquals(bytes("key1000"), it.next().getKey());
+        assertEquals(bytes("key1001"), it.prev().getKey());
+        assertEquals(bytes("key1000"), it.prev().getKey());
+        assertEquals(bytes("key0999"), it.next().getKey());
+        assertEquals(bytes("key1000"), it.next().getKey());
+        long entries = it.statistics().entries();
+        assertTrue(entries > 0 && entries <= 2 * 1024);
+        it.close();
+        db.close();
+    }
+
+    @Test
+    public void testPutKeyValueCopies() throws IOException, DBException {
+        File path = getTestDirectory(getName());
+        DB db = factory.open(path, new Options().createIfMissing(true));
+        Random random = new Random(42);
+        // sizes on both sides of the arena's initial and maximum block sizes
+        int[] sizes = {0, 1, 4095, 4096, 4097, 256 * 1024, 300 * 1024};
+        for (int keySize : new int[] {1, 100, 5000}) {
+            for (int valueSize : sizes) {
+                byte[] key = new byte[keySize];
+                byte[] value = new byte[valueSize];
+                random.nextBytes(key);
+                random.nextBytes(value);
+                db.put(key, value);
+                assertEquals(value, db.get(key));
+
+                WriteBatch batch = db.createWriteBatch();
+                key[0] ^= 1;
+                batch.put(key, value);
+                db.write(batch);
+                batch.close();
+                assertEquals(value, db.get(key));
+            }
+        }
+        db.close();
+    }
+
+    @Test
+    public void testHeapWriteBatchBuildsFaster() throws IOException, DBException {
+        File path = getTestDirectory(getName());
+        JniDB db = (JniDB) factory.open(path, new Options().createIfMissing(true));
+        byte[][] keys = new byte[10000][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = bytes(String.format("key%05d", i));
+        }
+        byte[] value = bytes("value");
+
+        // building a heap batch makes no native calls, a plain one makes one per record
+        long plain = Long.MAX_VALUE;
+        long heap = Long.MAX_VALUE;
+        for (int round = 0; round < 20; round++) {
+            long start = System.nanoTime();
+            WriteBatch batch = db.createWriteBatch();
+            for (byte[] key : keys) {
+                batch.put(key, value);
+            }
+            plain = Math.min(plain, System.nanoTime() - start);
+            batch.close();
+
+            start = System.nanoTime();
+            batch = db.createHeapWriteBatch();
+            for (byte[] key : keys) {
+                batch.put(key, value);
+            }
+            heap = Math.min(heap, System.nanoTime() - start);
+            batch.close();
+        }
+        assertTrue("heap " + heap + "ns, plain " + plain + "ns", heap < plain);
+
+        db.close();
+    }
 }